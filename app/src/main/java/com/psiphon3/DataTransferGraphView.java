@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+import androidx.annotation.Nullable;
+
+// Line graph of a data transfer series, drawn straight on the canvas from preallocated point
+// buffers so that the 1 Hz updates of the statistics tab allocate nothing.
+//
+// The series moves by whole buckets as time passes, so on update the points already mapped to
+// the view are shifted by the number of new buckets and only the new and modified buckets are
+// mapped again. All of the points are only mapped again when the scale of the graph changes.
+public class DataTransferGraphView extends View {
+    private static final int GRID_DIVISIONS = 4;
+
+    private final Paint linePaint = new Paint();
+    private final Paint gridPaint = new Paint();
+    private final SeriesDecimator decimator = new SeriesDecimator();
+
+    private long[] values = new long[0];
+    // Period number of the newest bucket in values, -1 until the first update
+    private long newestPeriod = -1;
+    private long maxValue;
+    // Points of the graph, x and y interleaved, one per bucket
+    private float[] points = new float[0];
+    // Points drawn when there are more buckets than can be drawn in the width of the view
+    private float[] decimatedPoints = new float[0];
+    private int decimatedPointCount;
+    private boolean isDecimated;
+    private final float[] gridLines = new float[(GRID_DIVISIONS + 1) * 2 * 4];
+
+    public DataTransferGraphView(Context context) {
+        this(context, null);
+    }
+
+    public DataTransferGraphView(Context context, @Nullable AttributeSet attrs) {
+        super(context, attrs);
+        float density = getResources().getDisplayMetrics().density;
+        linePaint.setColor(Color.YELLOW);
+        linePaint.setStrokeWidth(density);
+        linePaint.setAntiAlias(true);
+        gridPaint.setColor(Color.GRAY);
+    }
+
+    // Updates the graph with a series ordered from the oldest to the newest bucket, where
+    // newestPeriod is the period number of the newest bucket.
+    public void update(long[] series, long newestPeriod) {
+        int length = series.length;
+        int shift;
+        if (values.length != length) {
+            values = new long[length];
+            points = new float[2 * length];
+            decimatedPoints = new float[2 * length];
+            shift = length;
+            layoutPoints();
+        } else if (this.newestPeriod < 0 || newestPeriod < this.newestPeriod) {
+            shift = length;
+        } else {
+            shift = (int) Math.min(newestPeriod - this.newestPeriod, length);
+        }
+        this.newestPeriod = newestPeriod;
+
+        if (shift > 0 && shift < length) {
+            System.arraycopy(values, shift, values, 0, length - shift);
+            for (int i = 0; i < length - shift; i++) {
+                points[2 * i + 1] = points[2 * (i + shift) + 1];
+            }
+        }
+
+        long max = 0;
+        for (long value : series) {
+            max = Math.max(max, value);
+        }
+        boolean isRescaled = max != maxValue;
+        maxValue = max;
+        // Buckets shifted in are new, the others are still mapped right unless their value
+        // changed, which is mostly the case of the newest bucket only
+        for (int i = 0; i < length; i++) {
+            if (isRescaled || i >= length - shift || values[i] != series[i]) {
+                values[i] = series[i];
+                points[2 * i + 1] = mapY(series[i]);
+            }
+        }
+        decimate();
+        invalidate();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        layoutGrid();
+        layoutPoints();
+        for (int i = 0; i < values.length; i++) {
+            points[2 * i + 1] = mapY(values[i]);
+        }
+        decimate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        canvas.drawLines(gridLines, gridPaint);
+        if (isDecimated) {
+            drawPolyline(canvas, decimatedPoints, decimatedPointCount);
+        } else {
+            drawPolyline(canvas, points, values.length);
+        }
+    }
+
+    // drawLines() draws separate segments between pairs of points, so the polyline through
+    // all of the points is drawn as the segments starting at even points followed by the ones
+    // starting at odd points, without having to store the inner points twice
+    private void drawPolyline(Canvas canvas, float[] points, int pointCount) {
+        if (pointCount < 2) {
+            return;
+        }
+        canvas.drawLines(points, 0, (pointCount / 2) * 4, linePaint);
+        if (pointCount > 2) {
+            canvas.drawLines(points, 2, ((pointCount - 1) / 2) * 4, linePaint);
+        }
+    }
+
+    // Reduces the points to the minimum and maximum per pixel column, if there are more than
+    // two points per column
+    private void decimate() {
+        int columns = getWidth() - getPaddingLeft() - getPaddingRight();
+        decimator.decimate(values, values.length, columns);
+        isDecimated = decimator.size() < values.length;
+        if (!isDecimated) {
+            return;
+        }
+        decimatedPointCount = decimator.size();
+        for (int i = 0; i < decimatedPointCount; i++) {
+            decimatedPoints[2 * i] = points[2 * decimator.getX(i)];
+            decimatedPoints[2 * i + 1] = points[2 * decimator.getX(i) + 1];
+        }
+    }
+
+    private void layoutPoints() {
+        int length = values.length;
+        float left = getPaddingLeft();
+        float width = getWidth() - getPaddingLeft() - getPaddingRight();
+        float step = length > 1 ? width / (length - 1) : 0;
+        for (int i = 0; i < length; i++) {
+            points[2 * i] = left + i * step;
+        }
+    }
+
+    private void layoutGrid() {
+        float left = getPaddingLeft();
+        float top = getPaddingTop();
+        float right = getWidth() - getPaddingRight();
+        float bottom = getHeight() - getPaddingBottom();
+        int i = 0;
+        for (int division = 0; division <= GRID_DIVISIONS; division++) {
+            float y = top + (bottom - top) * division / GRID_DIVISIONS;
+            gridLines[i++] = left;
+            gridLines[i++] = y;
+            gridLines[i++] = right;
+            gridLines[i++] = y;
+            float x = left + (right - left) * division / GRID_DIVISIONS;
+            gridLines[i++] = x;
+            gridLines[i++] = top;
+            gridLines[i++] = x;
+            gridLines[i++] = bottom;
+        }
+    }
+
+    // Maps a value to a y coordinate, with the maximum value drawn just inside the top edge
+    private float mapY(long value) {
+        float bottom = getHeight() - getPaddingBottom() - linePaint.getStrokeWidth() / 2;
+        if (maxValue <= 0) {
+            return bottom;
+        }
+        float height = bottom - getPaddingTop() - linePaint.getStrokeWidth() / 2;
+        return bottom - height * value / maxValue;
+    }
+}
@@ -21,6 +21,9 @@ package com.psiphon3;
 
 
 import android.content.Context;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -35,16 +38,14 @@ import com.psiphon3.log.LogEntry;
 import com.psiphon3.log.MyLog;
 import com.psiphon3.psiphonlibrary.Utils;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.util.Date;
+import java.util.List;
 
-public class LogsListAdapter extends PagedListAdapter<LogEntry, LogsListAdapter.LogEntryViewHolder> {
-
-    private Context context;
+public class LogsListAdapter extends PagedListAdapter<LogsListAdapter.LogRow, LogsListAdapter.LogEntryViewHolder> {
+    // Same as the default text selection highlight
+    private static final int HIGHLIGHT_COLOR = 0x6633B5E5;
 
-    public LogsListAdapter(@NonNull DiffUtil.ItemCallback<LogEntry> diffCallback) {
+    public LogsListAdapter(@NonNull DiffUtil.ItemCallback<LogRow> diffCallback) {
         super(diffCallback);
     }
 
@@ -57,30 +58,58 @@ public class LogsListAdapter extends PagedListAdapter<LogEntry, LogsListAdapter.
 
     @Override
     public void onBindViewHolder(@NonNull LogEntryViewHolder holder, int position) {
-        LogEntry item = getItem(position);
+        LogRow item = getItem(position);
         if (item == null) {
             return;
         }
-        if (item.isDiagnostic()) {
-            try {
-                JSONObject jsonObj = new JSONObject(item.getLogJson());
-                Date timestamp = new Date(item.getTimestamp());
-                String msg = jsonObj.getString("msg");
-                JSONObject data = jsonObj.optJSONObject("data");
-                String msgStr = data == null ? msg : msg + ":" + data.toString();
-                holder.bind(timestamp, msgStr);
-            } catch (JSONException ignored) {
-            }
-        } else {
-                String msg = MyLog.getStatusLogMessageForDisplay(item.getLogJson(), context);
-                holder.bind(new Date(item.getTimestamp()), msg);
-        }
+        holder.bind(item);
     }
 
-    @Override
-    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
-        super.onAttachedToRecyclerView(recyclerView);
-        context = recyclerView.getContext();
+    // A log as displayed. Rows are made by the paging pipeline on its fetch thread, so that
+    // decoding and formatting the logs is not done on the main thread while scrolling.
+    public static class LogRow {
+        private final int id;
+        private final String timestamp;
+        private final CharSequence message;
+        private final List<String> highlightWords;
+
+        private LogRow(int id, String timestamp, CharSequence message, List<String> highlightWords) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.message = message;
+            this.highlightWords = highlightWords;
+        }
+
+        // Formats the log, highlighting the words starting with the highlight words which the
+        // search matched
+        public static LogRow from(Context context, LogEntry logEntry, List<String> highlightWords) {
+            String msg = logEntry.isDiagnostic() ?
+                    MyLog.getDiagnosticLogMessageForDisplay(logEntry.getPayload()) :
+                    MyLog.getStatusLogMessageForDisplay(logEntry.getPayload(), context);
+            return new LogRow(logEntry.getId(),
+                    Utils.getLocalTimeString(new Date(logEntry.getTimestamp())),
+                    highlightWords.isEmpty() ? msg : highlight(msg, highlightWords),
+                    highlightWords);
+        }
+
+        // Highlights the word prefixes ignoring case, like the search does
+        private static CharSequence highlight(String msg, List<String> words) {
+            SpannableString text = new SpannableString(msg);
+            for (int start = 0; start < msg.length(); start++) {
+                if (!Character.isLetterOrDigit(msg.charAt(start)) ||
+                        (start > 0 && Character.isLetterOrDigit(msg.charAt(start - 1)))) {
+                    continue;
+                }
+                for (String word : words) {
+                    if (msg.regionMatches(true, start, word, 0, word.length())) {
+                        text.setSpan(new BackgroundColorSpan(HIGHLIGHT_COLOR), start, start + word.length(),
+                                Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                        break;
+                    }
+                }
+            }
+            return text;
+        }
     }
 
     static class LogEntryViewHolder extends RecyclerView.ViewHolder {
@@ -93,26 +122,25 @@ public class LogsListAdapter extends PagedListAdapter<LogEntry, LogsListAdapter.
             messageView = itemView.findViewById(R.id.MessageRow_Text);
         }
 
-        public void bind(Date timestamp, String msg) {
-            if (timestamp != null && msg != null) {
-                timestampView.setText(Utils.getLocalTimeString(timestamp));
-                messageView.setText(msg);
-            }
+        public void bind(LogRow row) {
+            timestampView.setText(row.timestamp);
+            messageView.setText(row.message);
         }
     }
 
-    public static class LogEntryComparator extends DiffUtil.ItemCallback<LogEntry> {
+    public static class LogEntryComparator extends DiffUtil.ItemCallback<LogRow> {
         @Override
-        public boolean areItemsTheSame(@NonNull LogEntry oldItem,
-                                       @NonNull LogEntry newItem) {
-            return oldItem.getId() == newItem.getId();
+        public boolean areItemsTheSame(@NonNull LogRow oldItem,
+                                       @NonNull LogRow newItem) {
+            return oldItem.id == newItem.id;
         }
 
         @Override
-        public boolean areContentsTheSame(@NonNull LogEntry oldItem,
-                                          @NonNull LogEntry newItem) {
-            return oldItem.getLogJson().equals(newItem.getLogJson()) &&
-                    (oldItem.getTimestamp() == newItem.getTimestamp());
+        public boolean areContentsTheSame(@NonNull LogRow oldItem,
+                                          @NonNull LogRow newItem) {
+            return oldItem.timestamp.equals(newItem.timestamp) &&
+                    oldItem.message.toString().equals(newItem.message.toString()) &&
+                    oldItem.highlightWords.equals(newItem.highlightWords);
         }
     }
-}
\ No newline at end of file
+}
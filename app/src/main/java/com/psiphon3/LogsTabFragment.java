@@ -20,9 +20,12 @@
 package com.psiphon3;
 
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.EditText;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -77,6 +80,22 @@ public class LogsTabFragment extends Fragment {
         pagingAdapter = new LogsListAdapter(new LogsListAdapter.LogEntryComparator());
         recyclerView.setAdapter(pagingAdapter);
 
+        EditText searchEditText = view.findViewById(R.id.logsSearchEditText);
+        searchEditText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                viewModel.setLogsSearchText(s.toString());
+            }
+        });
+
         pagingAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
             @Override
             public void onItemRangeInserted(int positionStart, int itemCount) {
@@ -21,6 +21,7 @@ package com.psiphon3;
 
 import android.app.Application;
 import android.database.ContentObserver;
+import android.net.Uri;
 
 import androidx.annotation.NonNull;
 import androidx.lifecycle.AndroidViewModel;
@@ -28,6 +29,7 @@ import androidx.lifecycle.DefaultLifecycleObserver;
 import androidx.paging.PagedList;
 import androidx.paging.RxPagedListBuilder;
 
+import com.jakewharton.rxrelay2.BehaviorRelay;
 import com.jakewharton.rxrelay2.PublishRelay;
 import com.psiphon3.log.LogEntry;
 import com.psiphon3.log.LoggingContentProvider;
@@ -36,8 +38,13 @@ import com.psiphon3.log.LogsLastEntryHelper;
 import com.psiphon3.log.MyLog;
 import com.psiphon3.psiphonlibrary.UpstreamProxySettings;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 import io.reactivex.BackpressureStrategy;
 import io.reactivex.Flowable;
+import io.reactivex.disposables.Disposable;
 
 public class MainActivityViewModel extends AndroidViewModel implements DefaultLifecycleObserver {
     private final PublishRelay<Boolean> customProxyValidationResultRelay = PublishRelay.create();
@@ -46,9 +53,15 @@ public class MainActivityViewModel extends AndroidViewModel implements DefaultLi
     private final PublishRelay<Object> openProxySettingsRelay = PublishRelay.create();
     private final PublishRelay<Object> openMoreOptionsRelay = PublishRelay.create();
     private final PublishRelay<String> externalBrowserUrlRelay = PublishRelay.create();
+    private final BehaviorRelay<String> logsSearchTextRelay = BehaviorRelay.createDefault("");
+    private final Disposable logsSearchTextDisposable;
+    // Words of the search text which the logs are highlighted with
+    private volatile List<String> logsHighlightWords = Collections.emptyList();
     private final Flowable<LogEntry> lastLogEntryFlowable;
-    private final Flowable<PagedList<LogEntry>> logsPagedListFlowable;
+    private final Flowable<PagedList<LogsListAdapter.LogRow>> logsPagedListFlowable;
     private final ContentObserver loggingObserver;
+    // Largest status log row id notified so far, guarded by loggingObserver
+    private long lastInsertedStatusLogId = -1;
 
     public MainActivityViewModel(@NonNull Application application) {
         super(application);
@@ -58,6 +71,28 @@ public class MainActivityViewModel extends AndroidViewModel implements DefaultLi
         loggingObserver = new ContentObserver(null) {
             @Override
             public void onChange(boolean selfChange) {
+                // Only called directly before API 16, which doesn't pass the URI
+                onChange(selfChange, null);
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                // The logs written to a log shard are notified again once the provider has
+                // imported them
+                if (LoggingContentProvider.LOG_SHARD_WRITTEN_URI.equals(uri)) {
+                    return;
+                }
+                // Insertions are notified with the largest status log row id inserted, skip
+                // notifications of rows that have already been loaded
+                long insertedStatusLogId = LoggingContentProvider.getInsertedStatusLogId(uri);
+                synchronized (this) {
+                    if (insertedStatusLogId >= 0) {
+                        if (insertedStatusLogId <= lastInsertedStatusLogId) {
+                            return;
+                        }
+                        lastInsertedStatusLogId = insertedStatusLogId;
+                    }
+                }
                 logsDataSourceFactory.invalidateDataSource();
                 logsLastEntryHelper.fetchLatest();
             }
@@ -69,18 +104,32 @@ public class MainActivityViewModel extends AndroidViewModel implements DefaultLi
         PagedList.Config pagedListConfig = new PagedList.Config.Builder()
                 .setPageSize(60)
                 .setPrefetchDistance(20)
-                .setEnablePlaceholders(true)
+                // The logs are paged by key, without counting them
+                .setEnablePlaceholders(false)
                 .setInitialLoadSizeHint(60)
                 .setMaxSize(100)
                 .build();
 
         logsPagedListFlowable =
                 new RxPagedListBuilder<>(
-                        logsDataSourceFactory, pagedListConfig)
+                        // Logs are formatted for display as they are loaded, off the main thread
+                        logsDataSourceFactory.map(logEntry ->
+                                LogsListAdapter.LogRow.from(application, logEntry, logsHighlightWords)),
+                        pagedListConfig)
                         .buildFlowable(BackpressureStrategy.LATEST)
                         .replay(1)
                         .autoConnect(0);
 
+        // Search as the user types, once they pause
+        logsSearchTextDisposable = logsSearchTextRelay
+                .debounce(300, TimeUnit.MILLISECONDS)
+                .distinctUntilChanged()
+                .subscribe(searchText -> {
+                    logsHighlightWords = LoggingContentProvider.splitSearchWords(searchText);
+                    logsDataSourceFactory.setSearchText(searchText);
+                    logsDataSourceFactory.invalidateDataSource();
+                });
+
         lastLogEntryFlowable = logsLastEntryHelper.getFlowable()
                 .replay(1)
                 .autoConnect(0);
@@ -93,6 +142,7 @@ public class MainActivityViewModel extends AndroidViewModel implements DefaultLi
     protected void onCleared() {
         super.onCleared();
         getApplication().getContentResolver().unregisterContentObserver(loggingObserver);
+        logsSearchTextDisposable.dispose();
     }
 
     // Basic check of proxy settings values
@@ -158,12 +208,16 @@ public class MainActivityViewModel extends AndroidViewModel implements DefaultLi
         return externalBrowserUrlRelay.toFlowable(BackpressureStrategy.LATEST);
     }
 
-    public Flowable<PagedList<LogEntry>> logsPagedListFlowable() {
+    public Flowable<PagedList<LogsListAdapter.LogRow>> logsPagedListFlowable() {
         return logsPagedListFlowable;
     }
 
+    public void setLogsSearchText(String searchText) {
+        logsSearchTextRelay.accept(searchText);
+    }
+
     public Flowable<String> lastLogEntryFlowable() {
         return lastLogEntryFlowable
-                .map(logEntry -> MyLog.getStatusLogMessageForDisplay(logEntry.getLogJson(), getApplication()));
+                .map(logEntry -> MyLog.getStatusLogMessageForDisplay(logEntry.getPayload(), getApplication()));
     }
 }
@@ -94,6 +94,8 @@ public class PsiphonApplication extends Application implements MyLog.ILogger {
     @Override
     public void onCreate() {
         super.onCreate();
+        // Before anything else that may log
+        MyLog.openLogBuffer(this);
 
         final String reportPath = PsiphonCrashService.getTempCrashReportPath(this);
         final NDCrashError error = NDCrash.initializeOutOfProcess(
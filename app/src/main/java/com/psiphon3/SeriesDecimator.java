@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3;
+
+// Reduces a series to what can actually be drawn in a given number of pixel columns: the
+// points falling in each column are replaced by their minimum and maximum, in their original
+// order. Unlike plain subsampling this keeps every peak and dip of the series, so the drawn
+// line looks the same as if all of the points were drawn.
+//
+// The output points keep their index in the input series as their x coordinate, and the
+// buffers are reused between calls.
+class SeriesDecimator {
+    private int[] m_x = new int[0];
+    private long[] m_y = new long[0];
+    private int m_size;
+
+    void decimate(long[] series, int length, int columns) {
+        // Never more points than in the input
+        ensureCapacity(length);
+        m_size = 0;
+        // Nothing to gain if there are already no more than two points per column, this is
+        // also the case while the view is not laid out yet and its width is unknown
+        if (columns <= 0 || length <= 2 * columns) {
+            for (int i = 0; i < length; i++) {
+                append(i, series[i]);
+            }
+            return;
+        }
+        for (int column = 0; column < columns; column++) {
+            int start = (int) ((long) column * length / columns);
+            int end = (int) ((long) (column + 1) * length / columns);
+            int minIndex = start;
+            int maxIndex = start;
+            for (int i = start + 1; i < end; i++) {
+                if (series[i] < series[minIndex]) {
+                    minIndex = i;
+                } else if (series[i] > series[maxIndex]) {
+                    maxIndex = i;
+                }
+            }
+            int first = Math.min(minIndex, maxIndex);
+            int second = Math.max(minIndex, maxIndex);
+            append(first, series[first]);
+            if (second != first) {
+                append(second, series[second]);
+            }
+        }
+    }
+
+    int size() {
+        return m_size;
+    }
+
+    int getX(int i) {
+        return m_x[i];
+    }
+
+    long getY(int i) {
+        return m_y[i];
+    }
+
+    private void append(int x, long y) {
+        m_x[m_size] = x;
+        m_y[m_size] = y;
+        m_size++;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (m_x.length < capacity) {
+            m_x = new int[capacity];
+            m_y = new long[capacity];
+        }
+    }
+}
@@ -30,11 +30,17 @@ import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -51,6 +57,17 @@ public class VpnManager {
     private static final String VPN_INTERFACE_IPV4_NETMASK = "255.255.255.0";
     private static final int UDPGW_SERVER_PORT = 7300;
 
+    // tun2socks logs are buffered natively and drained in batches by a timer, so that logging
+    // costs the tun2socks thread no more than a copy. Logs above TUN2SOCKS_LOG_LEVEL are
+    // dropped before being buffered.
+    // These are the levels as defined in the native code
+    // static char *level_names[] = { NULL, "ERROR", "WARNING", "NOTICE", "INFO", "DEBUG" };
+    private static final String[] TUN2SOCKS_LOG_LEVEL_NAMES = {null, "ERROR", "WARNING", "NOTICE", "INFO", "DEBUG"};
+    private static final int TUN2SOCKS_LOG_LEVEL = 2; // WARNING
+    private static final long TUN2SOCKS_LOG_DRAIN_INTERVAL_MILLIS = 1000;
+    private static final int TUN2SOCKS_LOG_DRAIN_BUFFER_SIZE = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     // The underlying tun2socks library has global state, so we need to ensure that only one
     // instance of VpnManager is created and used at a time
     private static volatile VpnManager INSTANCE = null;
@@ -60,13 +77,9 @@ public class VpnManager {
     private final AtomicBoolean isRoutingThroughTunnel;
     private Thread mTun2SocksThread;
     private WeakReference<VpnServiceBuilderProvider> vpnServiceBuilderProviderRef;
-
-    // Initialize the tun2socks logger with the class name and method name
-    // This is called once when the class is loaded
-    // The logTun2Socks method is called from the native tun2socks code to log messages
-    static {
-        Tun2SocksJniLoader.initializeLogger(VpnManager.class.getName(), "logTun2Socks");
-    }
+    private final ScheduledExecutorService tun2SocksLogDrainExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final byte[] tun2SocksLogDrainBuffer = new byte[TUN2SOCKS_LOG_DRAIN_BUFFER_SIZE];
+    private ScheduledFuture<?> tun2SocksLogDrainFuture;
 
     private VpnManager() {
         tunFd = new AtomicReference<>();
@@ -273,6 +286,9 @@ public class VpnManager {
         if (mTun2SocksThread != null) {
             return;
         }
+        Tun2SocksJniLoader.setTun2SocksLogLevel(TUN2SOCKS_LOG_LEVEL);
+        tun2SocksLogDrainFuture = tun2SocksLogDrainExecutor.scheduleWithFixedDelay(this::drainTun2SocksLogs,
+                TUN2SOCKS_LOG_DRAIN_INTERVAL_MILLIS, TUN2SOCKS_LOG_DRAIN_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
         mTun2SocksThread = new Thread(() -> Tun2SocksJniLoader.runTun2Socks(
                 vpnInterfaceFileDescriptor.detachFd(),
                 vpnInterfaceMTU,
@@ -295,32 +311,63 @@ public class VpnManager {
                 Thread.currentThread().interrupt();
             }
             mTun2SocksThread = null;
+            tun2SocksLogDrainFuture.cancel(false);
+            tun2SocksLogDrainFuture = null;
+            // Logs made while stopping
+            tun2SocksLogDrainExecutor.execute(this::drainTun2SocksLogs);
             MyLog.i("tun2socks stopped");
         }
     }
 
-    // Log messages from tun2socks, called from native tun2socks code
-    public static void logTun2Socks(String level, String channel, String msg) {
-        String logMsg = "tun2socks: " + level + "(" + channel + "): " + msg;
+    // Logs the messages buffered by tun2socks, called on tun2SocksLogDrainExecutor
+    private void drainTun2SocksLogs() {
+        while (true) {
+            int length = Tun2SocksJniLoader.drainTun2SocksLogs(tun2SocksLogDrainBuffer);
+            if (length < 4) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(tun2SocksLogDrainBuffer, 0, length);
+            int dropped = buffer.getInt();
+            if (dropped > 0) {
+                MyLog.w("tun2socks: dropped logs, buffer full", "count", dropped);
+            }
+            if (!buffer.hasRemaining()) {
+                return;
+            }
+            while (buffer.hasRemaining()) {
+                int level = buffer.get() & 0xff;
+                String channel = readTun2SocksLogString(buffer, buffer.get() & 0xff);
+                String msg = readTun2SocksLogString(buffer, buffer.getShort() & 0xffff);
+                logTun2Socks(level, channel, msg);
+            }
+        }
+    }
+
+    private static String readTun2SocksLogString(ByteBuffer buffer, int length) {
+        String string = new String(buffer.array(), buffer.position(), length, UTF_8);
+        buffer.position(buffer.position() + length);
+        return string;
+    }
 
-        // These are the levels as defined in the native code
-        // static char *level_names[] = { NULL, "ERROR", "WARNING", "NOTICE", "INFO", "DEBUG" };
+    private static void logTun2Socks(int level, String channel, String msg) {
+        String levelName = level < TUN2SOCKS_LOG_LEVEL_NAMES.length ? TUN2SOCKS_LOG_LEVEL_NAMES[level] : null;
+        String logMsg = "tun2socks: " + levelName + "(" + channel + "): " + msg;
 
         // Keep redundant cases for each level to make it easier to modify in the future
         switch (level) {
-            case "ERROR":
+            case 1: // ERROR
                 MyLog.e(logMsg);
                 break;
-            case "WARNING":
+            case 2: // WARNING
                 MyLog.w(logMsg);
                 break;
-            case "NOTICE":
+            case 3: // NOTICE
                 MyLog.i(logMsg);
                 break;
-            case "INFO":
+            case 4: // INFO
                 MyLog.i(logMsg);
                 break;
-            case "DEBUG":
+            case 5: // DEBUG
                 MyLog.v(logMsg);
                 break;
             default:
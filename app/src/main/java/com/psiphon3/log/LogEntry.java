@@ -26,16 +26,19 @@ import androidx.room.Entity;
 import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
-@Entity(tableName = "log", indices = {@Index("timestamp")})
+// The (is_diagnostic, timestamp, _ID) index covers the keyset paging of the status logs
+@Entity(tableName = "log", indices = {@Index("timestamp"), @Index({"is_diagnostic", "timestamp", "_ID"}),
+        @Index({"priority", "timestamp"})})
 public class LogEntry {
     @PrimaryKey(autoGenerate = true)
     @ColumnInfo(name = "_ID")
     @NonNull
     private int id;
 
-    @ColumnInfo(name = "logjson")
+    // Encoded with LogPayload
+    @ColumnInfo(name = "payload", typeAffinity = ColumnInfo.BLOB)
     @NonNull
-    private String logJson;
+    private byte[] payload;
 
     @ColumnInfo(name = "is_diagnostic")
     private boolean isDiagnostic;
@@ -47,8 +50,8 @@ public class LogEntry {
     @ColumnInfo(name = "timestamp")
     private long timestamp;
 
-    public LogEntry(@NonNull String logJson, boolean isDiagnostic, int priority, long timestamp) {
-        this.logJson = logJson;
+    public LogEntry(@NonNull byte[] payload, boolean isDiagnostic, int priority, long timestamp) {
+        this.payload = payload;
         this.isDiagnostic = isDiagnostic;
         this.priority = priority;
         this.timestamp = timestamp;
@@ -63,12 +66,12 @@ public class LogEntry {
     }
 
     @NonNull
-    public String getLogJson() {
-        return logJson;
+    public byte[] getPayload() {
+        return payload;
     }
 
-    public void setLogJson(@NonNull String logJson) {
-        this.logJson = logJson;
+    public void setPayload(@NonNull byte[] payload) {
+        this.payload = payload;
     }
 
     public int getPriority() {
@@ -99,7 +102,7 @@ public class LogEntry {
     public String toString() {
         return "LogEntry{" +
                 "id=" + id +
-                ", logJson='" + logJson + '\'' +
+                ", payload.length=" + payload.length +
                 ", isDiagnostic=" + isDiagnostic +
                 ", priority=" + priority +
                 ", timestamp=" + timestamp +
@@ -35,12 +35,58 @@ public abstract class LogEntryDao {
     @Query("SELECT * FROM log WHERE timestamp < :beforeDateMillis ORDER BY timestamp DESC")
     abstract Cursor getLogsBeforeDate(long beforeDateMillis);
 
-    @Query("DELETE FROM log WHERE timestamp < :beforeDateMillis")
-    abstract int deleteLogsBefore(long beforeDateMillis);
+    @Query("SELECT COUNT(*) FROM log")
+    abstract long getLogsCount();
 
-    @Query("SELECT * FROM log WHERE is_diagnostic = 0 ORDER BY timestamp DESC LIMIT 1")
+    // Logs are deleted in chunks of at most limit rows, oldest first, so that each delete
+    // transaction only holds the write lock briefly
+
+    @Query("DELETE FROM log WHERE _ID IN " +
+            "(SELECT _ID FROM log WHERE timestamp < :beforeDateMillis ORDER BY timestamp LIMIT :limit)")
+    abstract int deleteLogsBefore(long beforeDateMillis, int limit);
+
+    @Query("DELETE FROM log WHERE _ID IN (SELECT _ID FROM log ORDER BY timestamp LIMIT :limit)")
+    abstract int deleteOldestLogs(int limit);
+
+    @Query("SELECT * FROM log WHERE is_diagnostic = 0 ORDER BY timestamp DESC, _ID DESC LIMIT 1")
     public abstract Cursor getLastStatusLogEntry();
 
-    @Query("SELECT * FROM log WHERE is_diagnostic = 0 ORDER BY timestamp DESC LIMIT :limit OFFSET :offset")
-    public abstract Cursor getStatusLogs(int offset, int limit);
+    // Status logs are paged by (timestamp, _ID) keys rather than by offset so that the cost of
+    // a page doesn't depend on how deep it is. Row value comparisons need SQLite 3.15, hence
+    // the expanded conditions, written so that the timestamp range can still use the index.
+
+    @Query("SELECT * FROM log WHERE is_diagnostic = 0 ORDER BY timestamp DESC, _ID DESC LIMIT :limit")
+    public abstract Cursor getLatestStatusLogs(int limit);
+
+    // Status logs older than the key, newest first
+    @Query("SELECT * FROM log WHERE is_diagnostic = 0 AND timestamp <= :timestamp " +
+            "AND (timestamp < :timestamp OR _ID < :id) " +
+            "ORDER BY timestamp DESC, _ID DESC LIMIT :limit")
+    public abstract Cursor getStatusLogsBefore(long timestamp, long id, int limit);
+
+    // Status logs newer than the key, oldest first
+    @Query("SELECT * FROM log WHERE is_diagnostic = 0 AND timestamp >= :timestamp " +
+            "AND (timestamp > :timestamp OR _ID > :id) " +
+            "ORDER BY timestamp ASC, _ID ASC LIMIT :limit")
+    public abstract Cursor getStatusLogsAfter(long timestamp, long id, int limit);
+
+    // Status logs matching a full text search query, paged the same way. The matching rows are
+    // looked up in the log_fts index and then joined by their _ID.
+
+    @Query("SELECT log.* FROM log JOIN log_fts ON log._ID = log_fts.rowid " +
+            "WHERE log_fts MATCH :query AND log.is_diagnostic = 0 " +
+            "ORDER BY log.timestamp DESC, log._ID DESC LIMIT :limit")
+    public abstract Cursor searchLatestStatusLogs(String query, int limit);
+
+    @Query("SELECT log.* FROM log JOIN log_fts ON log._ID = log_fts.rowid " +
+            "WHERE log_fts MATCH :query AND log.is_diagnostic = 0 AND log.timestamp <= :timestamp " +
+            "AND (log.timestamp < :timestamp OR log._ID < :id) " +
+            "ORDER BY log.timestamp DESC, log._ID DESC LIMIT :limit")
+    public abstract Cursor searchStatusLogsBefore(String query, long timestamp, long id, int limit);
+
+    @Query("SELECT log.* FROM log JOIN log_fts ON log._ID = log_fts.rowid " +
+            "WHERE log_fts MATCH :query AND log.is_diagnostic = 0 AND log.timestamp >= :timestamp " +
+            "AND (log.timestamp > :timestamp OR log._ID > :id) " +
+            "ORDER BY log.timestamp ASC, log._ID ASC LIMIT :limit")
+    public abstract Cursor searchStatusLogsAfter(String query, long timestamp, long id, int limit);
 }
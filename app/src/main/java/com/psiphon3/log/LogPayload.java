@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.log;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+// Compact binary encoding of the logs stored by the LoggingContentProvider, replacing the
+// JSON strings logs used to be stored as.
+//
+// Every payload starts with the format version and the log type:
+// - Status logs hold the sensitivity, the string resource name and the typed format args.
+// - Diagnostic logs hold the message and the typed name/value pairs of the data.
+// - Tunnel core notices are already JSON, their UTF-8 bytes are stored as they are.
+//
+// Payloads are only decoded when a log is displayed or exported.
+public class LogPayload {
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int TYPE_STATUS = 1;
+    private static final int TYPE_DIAGNOSTIC = 2;
+    private static final int TYPE_NOTICE = 3;
+
+    private static final int VALUE_NULL = 0;
+    private static final int VALUE_STRING = 1;
+    private static final int VALUE_INT = 2;
+    private static final int VALUE_LONG = 3;
+    private static final int VALUE_DOUBLE = 4;
+    private static final int VALUE_BOOLEAN = 5;
+    private static final int VALUE_JSON_OBJECT = 6;
+    private static final int VALUE_JSON_ARRAY = 7;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static byte[] encodeStatus(String stringResourceName, int sensitivity, Object[] formatArgs) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(FORMAT_VERSION);
+            out.writeByte(TYPE_STATUS);
+            out.writeByte(sensitivity);
+            writeString(out, stringResourceName);
+            int count = formatArgs == null ? 0 : formatArgs.length;
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                writeValue(out, formatArgs[i]);
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Not thrown by ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static byte[] encodeDiagnostic(String msg, Object[] nameValuePairs) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(FORMAT_VERSION);
+            out.writeByte(TYPE_DIAGNOSTIC);
+            writeString(out, msg);
+            int count = nameValuePairs == null ? 0 : nameValuePairs.length / 2;
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                writeString(out, String.valueOf(nameValuePairs[i * 2]));
+                writeValue(out, nameValuePairs[i * 2 + 1]);
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static byte[] encodeNotice(String notice) {
+        byte[] noticeBytes = notice.getBytes(UTF_8);
+        byte[] payload = new byte[2 + noticeBytes.length];
+        payload[0] = FORMAT_VERSION;
+        payload[1] = TYPE_NOTICE;
+        System.arraycopy(noticeBytes, 0, payload, 2, noticeBytes.length);
+        return payload;
+    }
+
+    // Status log fields decoded from a payload
+    public static class Status {
+        private final String stringResourceName;
+        private final int sensitivity;
+        private final Object[] formatArgs;
+
+        private Status(String stringResourceName, int sensitivity, Object[] formatArgs) {
+            this.stringResourceName = stringResourceName;
+            this.sensitivity = sensitivity;
+            this.formatArgs = formatArgs;
+        }
+
+        public String getStringResourceName() {
+            return stringResourceName;
+        }
+
+        public int getSensitivity() {
+            return sensitivity;
+        }
+
+        // Empty if the log has no format args
+        public Object[] getFormatArgs() {
+            return formatArgs;
+        }
+
+        public JSONArray getFormatArgsJsonArray() {
+            JSONArray formatArgsJsonArray = new JSONArray();
+            for (Object arg : formatArgs) {
+                formatArgsJsonArray.put(arg);
+            }
+            return formatArgsJsonArray;
+        }
+    }
+
+    // Diagnostic log fields decoded from a payload, tunnel core notices are the message with
+    // empty data. JSON object and array values are kept as the JSON text they were stored as,
+    // and only parsed if the data is requested as a JSONObject.
+    public static class Diagnostic {
+        private final String msg;
+        private final String[] names;
+        private final Object[] values;
+
+        private Diagnostic(String msg, String[] names, Object[] values) {
+            this.msg = msg;
+            this.names = names;
+            this.values = values;
+        }
+
+        public String getMsg() {
+            return msg;
+        }
+
+        public JSONObject getData() {
+            JSONObject data = new JSONObject();
+            for (int i = 0; i < names.length; i++) {
+                try {
+                    Object value = values[i];
+                    if (value instanceof RawJson) {
+                        RawJson rawJson = (RawJson) value;
+                        value = rawJson.isArray ? new JSONArray(rawJson.json) : new JSONObject(rawJson.json);
+                    } else if (isNonFinite(value)) {
+                        value = value.toString();
+                    }
+                    data.put(names[i], value);
+                } catch (JSONException ignored) {
+                    // Only thrown for JSON values stored invalid
+                }
+            }
+            return data;
+        }
+
+        // Writes the "msg" and "data" fields, copying the JSON values through without parsing
+        public void writeFields(JsonGenerator generator) throws IOException {
+            generator.writeStringField("msg", msg);
+            generator.writeObjectFieldStart("data");
+            for (int i = 0; i < names.length; i++) {
+                generator.writeFieldName(names[i]);
+                writeJsonValue(generator, values[i]);
+            }
+            generator.writeEndObject();
+        }
+
+        public String getMessageForDisplay() {
+            return msg + ":" + getData().toString();
+        }
+    }
+
+    // Returns null if the payload is not a valid status log
+    public static Status decodeStatus(byte[] payload) {
+        if (!isValid(payload) || payload[1] != TYPE_STATUS) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload, 2, payload.length - 2));
+            int sensitivity = in.readByte();
+            String stringResourceName = readString(in);
+            Object[] formatArgs = new Object[readCount(in)];
+            for (int i = 0; i < formatArgs.length; i++) {
+                formatArgs[i] = readValue(in);
+            }
+            return new Status(stringResourceName, sensitivity, formatArgs);
+        } catch (IOException | JSONException e) {
+            return null;
+        }
+    }
+
+    // Returns null if the payload is not a valid diagnostic log or notice
+    public static Diagnostic decodeDiagnostic(byte[] payload) {
+        if (!isValid(payload)) {
+            return null;
+        }
+        if (payload[1] == TYPE_NOTICE) {
+            return new Diagnostic(new String(payload, 2, payload.length - 2, UTF_8), new String[0], new Object[0]);
+        }
+        if (payload[1] != TYPE_DIAGNOSTIC) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload, 2, payload.length - 2));
+            String msg = readString(in);
+            int count = readCount(in);
+            String[] names = new String[count];
+            Object[] values = new Object[count];
+            for (int i = 0; i < count; i++) {
+                names[i] = readString(in);
+                values[i] = readRawValue(in);
+            }
+            return new Diagnostic(msg, names, values);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Writes a decoded value, such as a status log format arg
+    public static void writeJsonValue(JsonGenerator generator, Object value) throws IOException {
+        if (value == null || value == JSONObject.NULL) {
+            generator.writeNull();
+        } else if (value instanceof String) {
+            generator.writeString((String) value);
+        } else if (value instanceof Integer) {
+            generator.writeNumber((Integer) value);
+        } else if (value instanceof Long) {
+            generator.writeNumber((Long) value);
+        } else if (isNonFinite(value)) {
+            // Not valid JSON numbers, written as strings the way Double.toString() spells them
+            generator.writeString(value.toString());
+        } else if (value instanceof Double) {
+            generator.writeNumber((Double) value);
+        } else if (value instanceof Boolean) {
+            generator.writeBoolean((Boolean) value);
+        } else if (value instanceof RawJson) {
+            generator.writeRawValue(((RawJson) value).json);
+        } else {
+            // JSONObject and JSONArray
+            generator.writeRawValue(value.toString());
+        }
+    }
+
+    private static boolean isNonFinite(Object value) {
+        return value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite());
+    }
+
+    // JSON object or array value kept as the JSON text it was stored as
+    private static class RawJson {
+        private final String json;
+        private final boolean isArray;
+
+        private RawJson(String json, boolean isArray) {
+            this.json = json;
+            this.isArray = isArray;
+        }
+    }
+
+    // Converts a log stored as JSON by the previous versions of the logging database. Diagnostic
+    // logs which are not valid JSON are kept as their text, the same way as tunnel core notices.
+    // Throws for status logs which are not valid, they can't be displayed without their string
+    // resource name.
+    static byte[] fromLegacyLogJson(String logJson, boolean isDiagnostic) throws JSONException {
+        if (logJson == null) {
+            throw new JSONException("missing log JSON");
+        }
+        JSONObject logJsonObject;
+        try {
+            logJsonObject = new JSONObject(logJson);
+        } catch (JSONException e) {
+            if (isDiagnostic) {
+                return encodeNotice(logJson);
+            }
+            throw e;
+        }
+        if (isDiagnostic) {
+            JSONObject data = logJsonObject.optJSONObject("data");
+            Object[] nameValuePairs = new Object[data == null ? 0 : data.length() * 2];
+            if (data != null) {
+                JSONArray names = data.names();
+                for (int i = 0; names != null && i < names.length(); i++) {
+                    String name = names.getString(i);
+                    nameValuePairs[i * 2] = name;
+                    nameValuePairs[i * 2 + 1] = data.get(name);
+                }
+            }
+            return encodeDiagnostic(logJsonObject.optString("msg"), nameValuePairs);
+        }
+        JSONArray formatArgsJsonArray = logJsonObject.optJSONArray("formatArgs");
+        Object[] formatArgs = new Object[formatArgsJsonArray == null ? 0 : formatArgsJsonArray.length()];
+        for (int i = 0; i < formatArgs.length; i++) {
+            formatArgs[i] = formatArgsJsonArray.get(i);
+        }
+        return encodeStatus(logJsonObject.getString("stringResourceName"),
+                logJsonObject.optInt("sensitivity", 0), formatArgs);
+    }
+
+    private static boolean isValid(byte[] payload) {
+        return payload != null && payload.length >= 2 && payload[0] == FORMAT_VERSION;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readCount(in)];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > in.available()) {
+            throw new IOException("invalid count " + count);
+        }
+        return count;
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null || value == JSONObject.NULL) {
+            out.writeByte(VALUE_NULL);
+        } else if (value instanceof String) {
+            out.writeByte(VALUE_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.writeByte(VALUE_INT);
+            out.writeInt(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            out.writeByte(VALUE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            out.writeByte(VALUE_DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            out.writeByte(VALUE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof JSONObject) {
+            out.writeByte(VALUE_JSON_OBJECT);
+            writeString(out, value.toString());
+        } else if (value instanceof JSONArray) {
+            out.writeByte(VALUE_JSON_ARRAY);
+            writeString(out, value.toString());
+        } else {
+            // Same as what JSONObject does with other types
+            out.writeByte(VALUE_STRING);
+            writeString(out, value.toString());
+        }
+    }
+
+    // Reads a value, leaving JSON objects and arrays as the JSON text they were stored as
+    private static Object readRawValue(DataInputStream in) throws IOException {
+        int type = in.readByte();
+        switch (type) {
+            case VALUE_NULL:
+                return JSONObject.NULL;
+            case VALUE_STRING:
+                return readString(in);
+            case VALUE_INT:
+                return in.readInt();
+            case VALUE_LONG:
+                return in.readLong();
+            case VALUE_DOUBLE:
+                return in.readDouble();
+            case VALUE_BOOLEAN:
+                return in.readBoolean();
+            case VALUE_JSON_OBJECT:
+                return new RawJson(readString(in), false);
+            case VALUE_JSON_ARRAY:
+                return new RawJson(readString(in), true);
+            default:
+                throw new IOException("unknown value type " + type);
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException, JSONException {
+        Object value = readRawValue(in);
+        if (value instanceof RawJson) {
+            RawJson rawJson = (RawJson) value;
+            return rawJson.isArray ? new JSONArray(rawJson.json) : new JSONObject(rawJson.json);
+        }
+        return value;
+    }
+}
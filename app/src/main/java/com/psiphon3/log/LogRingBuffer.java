@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.log;
+
+import android.content.ContentValues;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+// Encoded logs not yet inserted in the logs database, kept in a memory-mapped file so that
+// they survive the process dying. Appending a log is a copy into the mapped pages, without a
+// system call or IPC, and the pages are written back by the kernel even if the process is
+// killed right after.
+//
+// The file starts with a magic number and the state of the ring: the offset of the oldest
+// entry and the number of entries, written together as one long. An entry is only committed
+// by counting it once it is fully written, so a partly written entry is never read back. When
+// the buffer is full the oldest entries are overwritten, so that the newest logs, such as the
+// ones leading up to a crash, are the ones kept. An entry which doesn't fit before the end of
+// the file is written at the start, after a wrap marker. Entries are released oldest first
+// once they are known to be in the database.
+class LogRingBuffer {
+    private static final int MAGIC = 0x50534c43;
+    private static final int STATE_POSITION = 8;
+    private static final int HEADER_SIZE = 16;
+    // Payload length, is_diagnostic, priority and timestamp
+    private static final int ENTRY_HEADER_SIZE = 4 + 1 + 1 + 8;
+    // Length of an entry marking that the next entry is at the start of the entries
+    private static final int WRAP_MARKER = -1;
+
+    // Entry read from the buffer, or pending to be sent, identified by its sequence number.
+    // Sequence numbers are only meaningful to the process that opened the buffer, and are -1
+    // for the logs which are not in the buffer.
+    static class Entry {
+        final long sequence;
+        final ContentValues values;
+
+        Entry(long sequence, ContentValues values) {
+            this.sequence = sequence;
+            this.values = values;
+        }
+    }
+
+    private final MappedByteBuffer buffer;
+    private int head;
+    private int count;
+    // Offset the next entry is written at, and sequence number of the oldest entry
+    private int tail;
+    private long headSequence;
+
+    private LogRingBuffer(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC) {
+            buffer.putInt(0, MAGIC);
+            head = HEADER_SIZE;
+            count = 0;
+        } else {
+            long state = buffer.getLong(STATE_POSITION);
+            head = (int) (state >>> 32);
+            count = (int) state;
+        }
+        recover();
+    }
+
+    // Finds the end of the entries, only keeping the entries which are valid in case the
+    // process died while the state was being written
+    private void recover() {
+        if (head < HEADER_SIZE || head >= buffer.capacity() || count < 0) {
+            head = HEADER_SIZE;
+            count = 0;
+        }
+        head = skipWrap(head);
+        int position = head;
+        int size = 0;
+        int validCount = 0;
+        while (validCount < count) {
+            position = skipWrap(position);
+            int length = buffer.getInt(position);
+            int entrySize = ENTRY_HEADER_SIZE + length;
+            if (length < 0 || entrySize > buffer.capacity() - position ||
+                    entrySize > buffer.capacity() - HEADER_SIZE - size) {
+                break;
+            }
+            size += entrySize;
+            position += entrySize;
+            validCount++;
+        }
+        count = validCount;
+        tail = count == 0 ? head : position;
+        writeState();
+    }
+
+    // Maps the file, creating it with the given size if needed. Entries left in the file by a
+    // previous process are kept.
+    static LogRingBuffer open(File file, int size) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            // The mapping stays valid once the channel is closed
+            return new LogRingBuffer(channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    // Returns the sequence number of the entry, or -1 if the log is too large to be kept.
+    // Overwrites the oldest entries as needed.
+    synchronized long append(byte[] payload, boolean isDiagnostic, int priority, long timestamp) {
+        int entrySize = ENTRY_HEADER_SIZE + payload.length;
+        if (entrySize > buffer.capacity() - HEADER_SIZE) {
+            return -1;
+        }
+        int position = tail;
+        boolean isWrapping = entrySize > buffer.capacity() - position;
+        if (isWrapping) {
+            position = HEADER_SIZE;
+        }
+        // The evictions are written before the entry overwrites them
+        while (count > 0 && overlapsEntries(position, entrySize, isWrapping)) {
+            evictHead();
+        }
+        if (count == 0) {
+            // Start over at the start of the entries, as there is nothing to keep
+            head = HEADER_SIZE;
+            position = HEADER_SIZE;
+            isWrapping = false;
+        }
+        if (isWrapping && buffer.capacity() - tail >= 4) {
+            buffer.putInt(tail, WRAP_MARKER);
+        }
+        buffer.position(position);
+        buffer.putInt(payload.length);
+        buffer.put((byte) (isDiagnostic ? 1 : 0));
+        buffer.put((byte) priority);
+        buffer.putLong(timestamp);
+        buffer.put(payload);
+        tail = position + entrySize;
+        count++;
+        writeState();
+        return headSequence + count - 1;
+    }
+
+    // Whether writing entrySize bytes at position would overwrite the entries, which start at
+    // head and end at tail
+    private boolean overlapsEntries(int position, int entrySize, boolean isWrapping) {
+        if (head < tail) {
+            // Entries don't wrap, only an entry written at the start can reach them
+            return isWrapping && position + entrySize > head;
+        }
+        // Entries wrap, or fill the buffer up to head. An entry written at the start would
+        // overwrite the entries there, until the head itself wraps.
+        return isWrapping || position + entrySize > head;
+    }
+
+    private void evictHead() {
+        int length = buffer.getInt(head);
+        head = skipWrap(head + ENTRY_HEADER_SIZE + length);
+        count--;
+        headSequence++;
+        if (count == 0) {
+            head = tail;
+        }
+        writeState();
+    }
+
+    // Returns the offset of the entry at position, which is at the start of the entries if
+    // there is a wrap marker at position or no room left for an entry
+    private int skipWrap(int position) {
+        if (buffer.capacity() - position < ENTRY_HEADER_SIZE || buffer.getInt(position) == WRAP_MARKER) {
+            return HEADER_SIZE;
+        }
+        return position;
+    }
+
+    private void writeState() {
+        buffer.putLong(STATE_POSITION, ((long) head << 32) | (count & 0xffffffffL));
+    }
+
+    // Returns the entries as the values inserted in the logs database, oldest first
+    synchronized List<Entry> read() {
+        List<Entry> entries = new ArrayList<>(count);
+        int position = head;
+        for (int i = 0; i < count; i++) {
+            position = skipWrap(position);
+            int length = buffer.getInt(position);
+            byte[] payload = new byte[length];
+            buffer.position(position + ENTRY_HEADER_SIZE);
+            buffer.get(payload);
+            ContentValues values = new ContentValues();
+            values.put("payload", payload);
+            values.put("is_diagnostic", buffer.get(position + 4) != 0);
+            values.put("priority", (int) buffer.get(position + 5));
+            values.put("timestamp", buffer.getLong(position + 6));
+            entries.add(new Entry(headSequence + i, values));
+            position += ENTRY_HEADER_SIZE + length;
+        }
+        return entries;
+    }
+
+    // Releases the entries up to the one with the given sequence number, included
+    synchronized void release(long sequence) {
+        while (count > 0 && headSequence <= sequence) {
+            evictHead();
+        }
+    }
+}
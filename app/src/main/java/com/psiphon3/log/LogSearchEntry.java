@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.log;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Fts4;
+import androidx.room.PrimaryKey;
+
+// Full text search index of the logs, the rowid of an entry is the _ID of its log. Entries are
+// inserted by LoggingRoomDatabase.updateSearchIndex() before each search and deleted along
+// with their logs by the log_fts_delete trigger.
+@Fts4
+@Entity(tableName = "log_fts")
+public class LogSearchEntry {
+    @PrimaryKey
+    @ColumnInfo(name = "rowid")
+    private int rowId;
+
+    // The log message as displayed
+    @ColumnInfo(name = "text")
+    @NonNull
+    private String text;
+
+    public LogSearchEntry(int rowId, @NonNull String text) {
+        this.rowId = rowId;
+        this.text = text;
+    }
+
+    public int getRowId() {
+        return rowId;
+    }
+
+    public void setRowId(int rowId) {
+        this.rowId = rowId;
+    }
+
+    @NonNull
+    public String getText() {
+        return text;
+    }
+
+    public void setText(@NonNull String text) {
+        this.text = text;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.log;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+// SQLite database of the logs of a single process, which the process writes directly instead
+// of sending its logs to the LoggingContentProvider process. This spares the writer the IPC,
+// and starting the provider process if it is not running.
+//
+// The shards are in WAL mode so that the provider can read them while they are written to,
+// and the provider moves the logs of all of the shards into its own database, merged by
+// timestamp, when a writer notifies LoggingContentProvider.LOG_SHARD_WRITTEN_URI, when the
+// provider starts and before the logs are trimmed or exported for feedback.
+class LogShard {
+    private static final String DIRECTORY = "logshards";
+    private static final String FILE_EXTENSION = ".db";
+
+    private final File file;
+    private final SQLiteDatabase database;
+    // Reader only, row id of the last log imported by the provider. The imported logs are
+    // deleted from the shard separately, which can fail while the writer holds the lock.
+    private long importedId = -1;
+
+    private LogShard(File file, SQLiteDatabase database) {
+        this.file = file;
+        this.database = database;
+    }
+
+    // Throws SQLiteException if the shard can't be opened
+    static LogShard open(Context context, String name) {
+        File directory = new File(context.getFilesDir(), DIRECTORY);
+        directory.mkdirs();
+        return open(new File(directory, name.replace(':', '_') + FILE_EXTENSION));
+    }
+
+    private static LogShard open(File file) {
+        SQLiteDatabase database = SQLiteDatabase.openOrCreateDatabase(file, null);
+        database.enableWriteAheadLogging();
+        database.execSQL("CREATE TABLE IF NOT EXISTS log (" +
+                "_ID INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "payload BLOB NOT NULL, " +
+                "is_diagnostic INTEGER NOT NULL, " +
+                "priority INTEGER NOT NULL, " +
+                "timestamp INTEGER NOT NULL)");
+        return new LogShard(file, database);
+    }
+
+    // Opens all of the shards written by the processes of the app, the caller owns them
+    static List<LogShard> openAll(Context context, List<String> openedPaths) {
+        List<LogShard> shards = new ArrayList<>();
+        File[] files = new File(context.getFilesDir(), DIRECTORY).listFiles();
+        if (files == null) {
+            return shards;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(FILE_EXTENSION) && !openedPaths.contains(file.getPath())) {
+                shards.add(open(file));
+            }
+        }
+        return shards;
+    }
+
+    String getPath() {
+        return file.getPath();
+    }
+
+    // Writes the logs in one transaction, as MyLog sends them to the provider
+    void insertLogs(ContentValues[] logs) {
+        database.beginTransaction();
+        try {
+            SQLiteStatement statement = database.compileStatement(
+                    "INSERT INTO log (payload, is_diagnostic, priority, timestamp) VALUES (?, ?, ?, ?)");
+            try {
+                for (ContentValues log : logs) {
+                    statement.bindBlob(1, log.getAsByteArray("payload"));
+                    statement.bindLong(2, log.getAsBoolean("is_diagnostic") ? 1 : 0);
+                    statement.bindLong(3, log.getAsInteger("priority"));
+                    statement.bindLong(4, log.getAsLong("timestamp"));
+                    statement.executeInsert();
+                }
+            } finally {
+                statement.close();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    long getImportedId() {
+        return importedId;
+    }
+
+    void setImportedId(long importedId) {
+        this.importedId = importedId;
+    }
+
+    // Returns the oldest logs not imported yet in the order they were written, which is also
+    // timestamp order but for the few logs timestamped before they are logged, with the _ID,
+    // payload, is_diagnostic, priority and timestamp columns
+    Cursor queryLogsToImport(int limit) {
+        return database.rawQuery("SELECT _ID, payload, is_diagnostic, priority, timestamp " +
+                "FROM log WHERE _ID > " + importedId + " ORDER BY _ID LIMIT " + limit, null);
+    }
+
+    void deleteImportedLogs() {
+        database.execSQL("DELETE FROM log WHERE _ID <= ?", new Object[]{importedId});
+    }
+}
@@ -22,56 +22,170 @@ package com.psiphon3.log;
 import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.content.UriMatcher;
+import android.database.AbstractWindowedCursor;
+import android.database.ContentObserver;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
+import android.database.CursorWindow;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.core.content.FileProvider;
+import androidx.core.os.ConfigurationCompat;
 import androidx.room.Database;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteStatement;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.psiphon3.BuildConfig;
+import com.psiphon3.psiphonlibrary.LocaleManager;
 
+import org.json.JSONException;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.zip.GZIPOutputStream;
 
 public class LoggingContentProvider extends ContentProvider {
 
     public static final String AUTHORITY = BuildConfig.APPLICATION_ID + "." + LoggingContentProvider.class.getSimpleName();
     public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
+    // Notified by the processes writing to a log shard when they write status logs, see LogShard
+    public static final Uri LOG_SHARD_WRITTEN_URI = CONTENT_URI.buildUpon().appendPath("shard").build();
+    // call() method which imports the logs of the log shards and returns once they are imported
+    public static final String METHOD_IMPORT_LOG_SHARDS = "import_log_shards";
 
-    private static final int STATUS_LOGS = 1;
+    private static final int STATUS_LOGS_LATEST = 1;
     private static final int STATUS_LOGS_COUNT = 2;
     private static final int DELETE_LOGS_BEFORE = 3;
     private static final int STATUS_LOG_LAST = 4;
     private static final int ALL_LOGS_BEFORE = 5;
+    private static final int STATUS_LOGS_INSERTED = 6;
+    private static final int STATUS_LOGS_BEFORE = 7;
+    private static final int STATUS_LOGS_AFTER = 8;
+    private static final int SEARCH_STATUS_LOGS_LATEST = 9;
+    private static final int SEARCH_STATUS_LOGS_BEFORE = 10;
+    private static final int SEARCH_STATUS_LOGS_AFTER = 11;
+    private static final int LOGS = 12;
+    private static final int EXPORT_LOGS = 13;
+
+    // Insertions of status logs are notified at most once per this interval, with the URI of
+    // the notification carrying the largest status log row id inserted so far
+    private static final long NOTIFY_STATUS_LOGS_INSERTED_INTERVAL_MILLIS = 250;
+
+    // Optional row and byte budgets of the delete/# URI, on top of its age limit
+    public static final String QUERY_PARAMETER_MAX_ROWS = "max_rows";
+    public static final String QUERY_PARAMETER_MAX_BYTES = "max_bytes";
+    // Text searched for by the search/status URIs
+    public static final String QUERY_PARAMETER_SEARCH = "q";
+
+    // Filters of the logs URI, all optional, which are all applied in SQL:
+    // - type: LOG_TYPE_STATUS or LOG_TYPE_DIAGNOSTIC, both if missing
+    // - min_priority: logs with at least this android.util.Log priority
+    // - from, to: logs timestamped in [from, to[, in milliseconds
+    // - prefix: logs whose message as displayed starts with the prefix
+    // - order: ORDER_ASCENDING for oldest first, newest first by default
+    // - limit: at most this many logs
+    // The query returns null if any of the filters is invalid. The logs of the log shards are
+    // imported before the query, so that the results include them.
+    public static final String QUERY_PARAMETER_TYPE = "type";
+    public static final String QUERY_PARAMETER_MIN_PRIORITY = "min_priority";
+    public static final String QUERY_PARAMETER_FROM = "from";
+    public static final String QUERY_PARAMETER_TO = "to";
+    public static final String QUERY_PARAMETER_PREFIX = "prefix";
+    public static final String QUERY_PARAMETER_ORDER = "order";
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+    public static final String LOG_TYPE_STATUS = "status";
+    public static final String LOG_TYPE_DIAGNOSTIC = "diagnostic";
+    public static final String ORDER_ASCENDING = "asc";
+
+    // The export URI takes the same filters as the logs URI and imports the log shards the same
+    // way. It is read with openFile() or openTypedAssetFile() as newline delimited JSON, one log
+    // per line, gzip compressed if QUERY_PARAMETER_GZIP is true
+    public static final String QUERY_PARAMETER_GZIP = "gzip";
+    public static final String EXPORT_MIME_TYPE = "application/x-ndjson";
+    public static final String EXPORT_GZIP_MIME_TYPE = "application/gzip";
+    private static final int EXPORT_BUFFER_SIZE = 64 * 1024;
+    private static final String EXPORT_DIRECTORY = "logexport";
+
+    // Size of the windows large results are sent to the caller in, smaller than the default of
+    // 2 MB so that a large result doesn't hold as much memory in both processes at once
+    private static final long QUERY_CURSOR_WINDOW_BYTES = 256 * 1024;
 
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
     static {
-        sUriMatcher.addURI(AUTHORITY, "status/offset/#/limit/#", STATUS_LOGS);
+        sUriMatcher.addURI(AUTHORITY, "status/latest/limit/#", STATUS_LOGS_LATEST);
+        sUriMatcher.addURI(AUTHORITY, "status/before/#/#/limit/#", STATUS_LOGS_BEFORE);
+        sUriMatcher.addURI(AUTHORITY, "status/after/#/#/limit/#", STATUS_LOGS_AFTER);
         sUriMatcher.addURI(AUTHORITY, "status/count", STATUS_LOGS_COUNT);
         sUriMatcher.addURI(AUTHORITY, "delete/#", DELETE_LOGS_BEFORE);
         sUriMatcher.addURI(AUTHORITY, "status/last", STATUS_LOG_LAST);
         sUriMatcher.addURI(AUTHORITY, "all/#", ALL_LOGS_BEFORE);
+        sUriMatcher.addURI(AUTHORITY, "status/inserted/#", STATUS_LOGS_INSERTED);
+        sUriMatcher.addURI(AUTHORITY, "search/status/latest/limit/#", SEARCH_STATUS_LOGS_LATEST);
+        sUriMatcher.addURI(AUTHORITY, "search/status/before/#/#/limit/#", SEARCH_STATUS_LOGS_BEFORE);
+        sUriMatcher.addURI(AUTHORITY, "search/status/after/#/#/limit/#", SEARCH_STATUS_LOGS_AFTER);
+        sUriMatcher.addURI(AUTHORITY, "logs", LOGS);
+        sUriMatcher.addURI(AUTHORITY, "export", EXPORT_LOGS);
+    }
+
+    private final Handler notifyHandler = new Handler(Looper.getMainLooper());
+    // Largest status log row id not notified yet, -1 if there is none, guarded by this
+    private long pendingInsertedStatusLogId = -1;
+
+    // Returns the largest row id of the status logs inserted as carried by a change
+    // notification URI, or -1 if the notification is not about inserted status logs
+    public static long getInsertedStatusLogId(Uri uri) {
+        if (uri == null || sUriMatcher.match(uri) != STATUS_LOGS_INSERTED) {
+            return -1;
+        }
+        return Long.parseLong(uri.getPathSegments().get(2));
     }
 
     public static LogEntry convertRows(Cursor cursor) {
         final int cursorIndexOfId = cursor.getColumnIndexOrThrow("_ID");
-        final int cursorIndexOfLogJson = cursor.getColumnIndexOrThrow("logjson");
+        final int cursorIndexOfPayload = cursor.getColumnIndexOrThrow("payload");
         final int cursorIndexOfIsDiagnostic = cursor.getColumnIndexOrThrow("is_diagnostic");
         final int cursorIndexOfPriority = cursor.getColumnIndexOrThrow("priority");
         final int cursorIndexOfTimestamp = cursor.getColumnIndexOrThrow("timestamp");
 
-        final String tmpLogJson = cursor.getString(cursorIndexOfLogJson);
+        final byte[] tmpPayload = cursor.getBlob(cursorIndexOfPayload);
         final boolean tmpIsDiagnostic = cursor.getInt(cursorIndexOfIsDiagnostic) != 0;
         final int tmpPriority = cursor.getInt(cursorIndexOfPriority);
         final long tmpTimestamp = cursor.getLong(cursorIndexOfTimestamp);
 
-        final LogEntry logEntry = new LogEntry(tmpLogJson, tmpIsDiagnostic, tmpPriority, tmpTimestamp);
+        final LogEntry logEntry = new LogEntry(tmpPayload, tmpIsDiagnostic, tmpPriority, tmpTimestamp);
 
         final int tmpId = cursor.getInt(cursorIndexOfId);
         logEntry.setId(tmpId);
@@ -81,9 +195,30 @@ public class LoggingContentProvider extends ContentProvider {
 
     @Override
     public boolean onCreate() {
+        final Context context = getContext();
+        if (context != null) {
+            context.getContentResolver().registerContentObserver(LOG_SHARD_WRITTEN_URI, false,
+                    new ContentObserver(null) {
+                        @Override
+                        public void onChange(boolean selfChange) {
+                            importLogShards();
+                        }
+                    });
+            // Logs written while the provider was not running
+            importLogShards();
+        }
         return true;
     }
 
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        if (METHOD_IMPORT_LOG_SHARDS.equals(method)) {
+            importLogShardsAndWait();
+        }
+        return null;
+    }
+
     @Nullable
     @Override
     public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection,
@@ -94,10 +229,15 @@ public class LoggingContentProvider extends ContentProvider {
             case STATUS_LOGS_COUNT:
                 return getCount();
 
-            case STATUS_LOGS:
-                int offset = Integer.parseInt(uri.getPathSegments().get(2));
-                int limit = Integer.parseInt(uri.getPathSegments().get(4));
-                return getStatusLogs(offset, limit);
+            case STATUS_LOGS_LATEST:
+                return getLatestStatusLogs(Integer.parseInt(uri.getPathSegments().get(3)));
+
+            case STATUS_LOGS_BEFORE:
+            case STATUS_LOGS_AFTER:
+                long timestamp = Long.parseLong(uri.getPathSegments().get(2));
+                long id = Long.parseLong(uri.getPathSegments().get(3));
+                int limit = Integer.parseInt(uri.getPathSegments().get(5));
+                return getStatusLogs(match == STATUS_LOGS_BEFORE, timestamp, id, limit);
 
             case STATUS_LOG_LAST:
                 return getLastStatusLogEntry();
@@ -106,6 +246,15 @@ public class LoggingContentProvider extends ContentProvider {
                 long beforeMillis = Long.parseLong(uri.getPathSegments().get(1));
                 return getAllLogsBefore(beforeMillis);
 
+            case SEARCH_STATUS_LOGS_LATEST:
+            case SEARCH_STATUS_LOGS_BEFORE:
+            case SEARCH_STATUS_LOGS_AFTER:
+                return searchStatusLogs(uri, match);
+
+            case LOGS:
+                importLogShardsAndWait();
+                return queryLogs(uri);
+
             default:
                 return null;
         }
@@ -114,9 +263,139 @@ public class LoggingContentProvider extends ContentProvider {
     @Nullable
     @Override
     public String getType(@NonNull Uri uri) {
+        if (sUriMatcher.match(uri) == EXPORT_LOGS) {
+            return uri.getBooleanQueryParameter(QUERY_PARAMETER_GZIP, false) ?
+                    EXPORT_GZIP_MIME_TYPE : EXPORT_MIME_TYPE;
+        }
         return null;
     }
 
+    // Streams the logs of the export URI through a pipe, written by a thread of its own as the
+    // reader consumes them, so that exporting the whole database takes constant memory on both
+    // ends. The export stops if the reader closes its end.
+    @Nullable
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != EXPORT_LOGS || !"r".equals(mode)) {
+            throw new FileNotFoundException("Unsupported URI or mode: " + uri + " " + mode);
+        }
+        importLogShardsAndWait();
+        final Cursor cursor = queryLogs(uri);
+        if (cursor == null) {
+            throw new FileNotFoundException("No logs to export: " + uri);
+        }
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            cursor.close();
+            throw new FileNotFoundException("Failed to create pipe: " + e);
+        }
+        final boolean isGzip = uri.getBooleanQueryParameter(QUERY_PARAMETER_GZIP, false);
+        new Thread(() -> exportLogs(cursor, pipe[1], isGzip), "LoggingContentProvider export").start();
+        return pipe[0];
+    }
+
+    private static void exportLogs(Cursor cursor, ParcelFileDescriptor fd, boolean isGzip) {
+        long startTime = SystemClock.elapsedRealtime();
+        int logCount = 0;
+        try (Cursor logs = cursor) {
+            OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(fd);
+            out = isGzip ?
+                    new GZIPOutputStream(out, EXPORT_BUFFER_SIZE) :
+                    new BufferedOutputStream(out, EXPORT_BUFFER_SIZE);
+            // Closing the generator closes the output stream and the pipe
+            JsonGenerator generator = new JsonFactory().createGenerator(out, JsonEncoding.UTF8);
+            // Each log ends its line instead of the default space between root values
+            generator.setRootValueSeparator(null);
+            while (logs.moveToNext()) {
+                if (writeExportedLog(generator, convertRows(logs))) {
+                    generator.writeRaw('\n');
+                    logCount++;
+                }
+            }
+            generator.close();
+        } catch (IOException | RuntimeException e) {
+            // Also the case of the reader going away. Any other failure is reported to the reader
+            // instead of an end of the logs, and doesn't take down the provider process.
+            try {
+                fd.closeWithError("Logs export failed: " + e);
+            } catch (IOException ignored) {
+            }
+            MyLog.w("LoggingContentProvider: logs export failed", "error", e.toString(), "logCount", logCount);
+            return;
+        }
+        MyLog.i("LoggingContentProvider: exported logs",
+                "logCount", logCount,
+                "durationMillis", SystemClock.elapsedRealtime() - startTime);
+    }
+
+    // Diagnostic logs are written with their message and data, status logs with their string
+    // resource name and format arguments. Sensitive status logs and format arguments are left
+    // out as they are from feedback. Returns false if the log is left out.
+    private static boolean writeExportedLog(JsonGenerator generator, LogEntry logEntry) throws IOException {
+        if (logEntry.isDiagnostic()) {
+            LogPayload.Diagnostic diagnostic = LogPayload.decodeDiagnostic(logEntry.getPayload());
+            if (diagnostic == null) {
+                return false;
+            }
+            writeExportedLogStart(generator, logEntry, LOG_TYPE_DIAGNOSTIC);
+            diagnostic.writeFields(generator);
+        } else {
+            LogPayload.Status status = LogPayload.decodeStatus(logEntry.getPayload());
+            if (status == null || status.getSensitivity() == MyLog.Sensitivity.SENSITIVE_LOG) {
+                return false;
+            }
+            writeExportedLogStart(generator, logEntry, LOG_TYPE_STATUS);
+            generator.writeStringField("stringResourceName", status.getStringResourceName());
+            generator.writeFieldName("formatArgs");
+            if (status.getSensitivity() != MyLog.Sensitivity.SENSITIVE_FORMAT_ARGS) {
+                generator.writeStartArray();
+                for (Object formatArg : status.getFormatArgs()) {
+                    LogPayload.writeJsonValue(generator, formatArg);
+                }
+                generator.writeEndArray();
+            } else {
+                generator.writeNull();
+            }
+        }
+        generator.writeEndObject();
+        return true;
+    }
+
+    private static void writeExportedLogStart(JsonGenerator generator, LogEntry logEntry, String type) throws IOException {
+        generator.writeStartObject();
+        generator.writeNumberField("id", logEntry.getId());
+        generator.writeNumberField("timestamp", logEntry.getTimestamp());
+        generator.writeNumberField("priority", logEntry.getPriority());
+        generator.writeStringField("type", type);
+    }
+
+    // Exports the logs matching the filters of exportUri to a file which can be shared through
+    // the app's FileProvider, and returns its content URI. Must not be called on the main
+    // thread.
+    public static Uri exportLogsToSharedFile(Context context, Uri exportUri) throws IOException {
+        boolean isGzip = exportUri.getBooleanQueryParameter(QUERY_PARAMETER_GZIP, false);
+        File directory = new File(context.getFilesDir(), EXPORT_DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        File file = new File(directory, isGzip ? "logs.ndjson.gz" : "logs.ndjson");
+        try (InputStream in = context.getContentResolver().openInputStream(exportUri);
+             OutputStream out = new FileOutputStream(file)) {
+            if (in == null) {
+                throw new IOException("Failed to open " + exportUri);
+            }
+            byte[] buffer = new byte[EXPORT_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return FileProvider.getUriForFile(context,
+                context.getApplicationContext().getPackageName() + ".UpgradeFileProvider", file);
+    }
+
     @Nullable
     @Override
     public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
@@ -126,16 +405,54 @@ public class LoggingContentProvider extends ContentProvider {
         }
         LoggingRoomDatabase db =
                 LoggingRoomDatabase.getDatabase(context.getApplicationContext());
-        db.getQueryExecutor().execute(() -> {
-            db.getOpenHelper().getWritableDatabase()
-                    .insert("log", SQLiteDatabase.CONFLICT_NONE, values);
-            if (!values.getAsBoolean("is_diagnostic")) {
-                context.getContentResolver().notifyChange(uri, null);
-            }
-        });
+        db.getQueryExecutor().execute(() -> notifyStatusLogsInserted(db.insertLogs(new ContentValues[]{values})));
         return null;
     }
 
+    // Logs are sent in batches by MyLog. The batch is written synchronously, which keeps the
+    // caller from sending more batches than the database can take.
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        final Context context = getContext();
+        if (context == null || values.length == 0) {
+            return 0;
+        }
+        LoggingRoomDatabase db =
+                LoggingRoomDatabase.getDatabase(context.getApplicationContext());
+        notifyStatusLogsInserted(db.insertLogs(values));
+        return values.length;
+    }
+
+    private void notifyStatusLogsInserted(long statusLogId) {
+        if (statusLogId < 0) {
+            return;
+        }
+        synchronized (this) {
+            boolean isNotificationPending = pendingInsertedStatusLogId >= 0;
+            pendingInsertedStatusLogId = Math.max(pendingInsertedStatusLogId, statusLogId);
+            if (isNotificationPending) {
+                return;
+            }
+        }
+        notifyHandler.postDelayed(() -> {
+            long id;
+            synchronized (this) {
+                id = pendingInsertedStatusLogId;
+                pendingInsertedStatusLogId = -1;
+            }
+            final Context context = getContext();
+            if (context == null) {
+                return;
+            }
+            Uri uri = CONTENT_URI.buildUpon()
+                    .appendPath("status")
+                    .appendPath("inserted")
+                    .appendPath(String.valueOf(id))
+                    .build();
+            context.getContentResolver().notifyChange(uri, null);
+        }, NOTIFY_STATUS_LOGS_INSERTED_INTERVAL_MILLIS);
+    }
+
     @Override
     public int delete(@NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
         final Context context = getContext();
@@ -146,16 +463,63 @@ public class LoggingContentProvider extends ContentProvider {
         if (match != DELETE_LOGS_BEFORE) {
             return 0;
         }
+        importLogShardsAndWait();
         long beforeMillis = Long.parseLong(uri.getPathSegments().get(1));
+        long maxRows = getLongQueryParameter(uri, QUERY_PARAMETER_MAX_ROWS);
+        long maxBytes = getLongQueryParameter(uri, QUERY_PARAMETER_MAX_BYTES);
         LoggingRoomDatabase db =
                 LoggingRoomDatabase.getDatabase(context.getApplicationContext());
-        db.getQueryExecutor().execute(() -> {
-            int deletedRows = db.deleteLogEntriesBefore(beforeMillis);
-            if (deletedRows > 0) {
-                context.getContentResolver().notifyChange(uri, null);
-            }
-        });
-        return 0;
+        // Deleted synchronously, in chunks which let the log inserts go in between
+        int deletedRows = db.deleteLogEntries(beforeMillis, maxRows, maxBytes);
+        if (deletedRows > 0) {
+            context.getContentResolver().notifyChange(uri, null);
+        }
+        return deletedRows;
+    }
+
+    // The logs written to the log shards are imported on the database executor, like the logs
+    // inserted one by one, and their insertion is notified as usual
+    private void importLogShards() {
+        final Context context = getContext();
+        if (context == null) {
+            return;
+        }
+        LoggingRoomDatabase db =
+                LoggingRoomDatabase.getDatabase(context.getApplicationContext());
+        db.getQueryExecutor().execute(() -> notifyStatusLogsInserted(db.importLogShards()));
+    }
+
+    // Used before the logs are trimmed, queried with the logs URI or exported, so that the logs
+    // of the log shards are accounted for
+    private void importLogShardsAndWait() {
+        final Context context = getContext();
+        if (context == null) {
+            return;
+        }
+        LoggingRoomDatabase db =
+                LoggingRoomDatabase.getDatabase(context.getApplicationContext());
+        FutureTask<Long> task = new FutureTask<>(db::importLogShards);
+        db.getQueryExecutor().execute(task);
+        try {
+            notifyStatusLogsInserted(task.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            MyLog.w("LoggingContentProvider: failed to import log shards", "error", e.getCause().toString());
+        }
+    }
+
+    // Returns Long.MAX_VALUE if the parameter is missing, which is no limit
+    private static long getLongQueryParameter(Uri uri, String name) {
+        String value = uri.getQueryParameter(name);
+        if (value == null) {
+            return Long.MAX_VALUE;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
     }
 
     @Override
@@ -163,14 +527,155 @@ public class LoggingContentProvider extends ContentProvider {
         throw new UnsupportedOperationException();
     }
 
-    private Cursor getStatusLogs(int offset, int limit) {
+    private Cursor getLatestStatusLogs(int limit) {
         final Context context = getContext();
         if (context == null) {
             return null;
         }
         LoggingRoomDatabase db =
                 LoggingRoomDatabase.getDatabase(context.getApplicationContext());
-        return db.getStatusLogs(offset, limit);
+        return db.getLatestStatusLogs(limit);
+    }
+
+    private Cursor getStatusLogs(boolean isBefore, long timestamp, long id, int limit) {
+        final Context context = getContext();
+        if (context == null) {
+            return null;
+        }
+        LoggingRoomDatabase db =
+                LoggingRoomDatabase.getDatabase(context.getApplicationContext());
+        return isBefore ? db.getStatusLogsBefore(timestamp, id, limit) :
+                db.getStatusLogsAfter(timestamp, id, limit);
+    }
+
+    private Cursor searchStatusLogs(Uri uri, int match) {
+        final Context context = getContext();
+        if (context == null) {
+            return null;
+        }
+        String query = toMatchQuery(uri.getQueryParameter(QUERY_PARAMETER_SEARCH));
+        if (query.isEmpty()) {
+            return null;
+        }
+        LoggingRoomDatabase db =
+                LoggingRoomDatabase.getDatabase(context.getApplicationContext());
+        db.updateSearchIndex();
+        if (match == SEARCH_STATUS_LOGS_LATEST) {
+            return db.searchLatestStatusLogs(query, Integer.parseInt(uri.getPathSegments().get(4)));
+        }
+        long timestamp = Long.parseLong(uri.getPathSegments().get(3));
+        long id = Long.parseLong(uri.getPathSegments().get(4));
+        int limit = Integer.parseInt(uri.getPathSegments().get(6));
+        return match == SEARCH_STATUS_LOGS_BEFORE ? db.searchStatusLogsBefore(query, timestamp, id, limit) :
+                db.searchStatusLogsAfter(query, timestamp, id, limit);
+    }
+
+    // Builds the query of the logs URI. The type, priority and time filters use the
+    // (is_diagnostic, timestamp, _ID) and (priority, timestamp) indexes. The prefix filter
+    // first narrows the logs down to the ones with all of the words of the prefix with the
+    // full text search index, then compares the start of their indexed message.
+    private Cursor queryLogs(Uri uri) {
+        final Context context = getContext();
+        if (context == null) {
+            return null;
+        }
+        LoggingRoomDatabase db =
+                LoggingRoomDatabase.getDatabase(context.getApplicationContext());
+        StringBuilder sql = new StringBuilder("SELECT log.* FROM log");
+        List<String> conditions = new ArrayList<>();
+        List<Object> args = new ArrayList<>();
+
+        String prefix = uri.getQueryParameter(QUERY_PARAMETER_PREFIX);
+        if (prefix != null && !prefix.isEmpty()) {
+            db.updateSearchIndex();
+            sql.append(" JOIN log_fts ON log._ID = log_fts.rowid");
+            String matchQuery = toMatchQuery(prefix);
+            if (!matchQuery.isEmpty()) {
+                conditions.add("log_fts MATCH ?");
+                args.add(matchQuery);
+            }
+            conditions.add("substr(log_fts.text, 1, ?) = ?");
+            args.add(prefix.codePointCount(0, prefix.length()));
+            args.add(prefix);
+        }
+        String type = uri.getQueryParameter(QUERY_PARAMETER_TYPE);
+        if (type != null) {
+            if (!type.equals(LOG_TYPE_STATUS) && !type.equals(LOG_TYPE_DIAGNOSTIC)) {
+                return null;
+            }
+            conditions.add("log.is_diagnostic = ?");
+            args.add(type.equals(LOG_TYPE_DIAGNOSTIC) ? 1 : 0);
+        }
+        if (!addLongCondition(uri, QUERY_PARAMETER_MIN_PRIORITY, "log.priority >= ?", conditions, args) ||
+                !addLongCondition(uri, QUERY_PARAMETER_FROM, "log.timestamp >= ?", conditions, args) ||
+                !addLongCondition(uri, QUERY_PARAMETER_TO, "log.timestamp < ?", conditions, args)) {
+            return null;
+        }
+        for (int i = 0; i < conditions.size(); i++) {
+            sql.append(i == 0 ? " WHERE " : " AND ").append(conditions.get(i));
+        }
+        String order = ORDER_ASCENDING.equals(uri.getQueryParameter(QUERY_PARAMETER_ORDER)) ? "ASC" : "DESC";
+        sql.append(" ORDER BY log.timestamp ").append(order).append(", log._ID ").append(order);
+        String limit = uri.getQueryParameter(QUERY_PARAMETER_LIMIT);
+        if (limit != null) {
+            try {
+                args.add(Long.parseLong(limit));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            sql.append(" LIMIT ?");
+        }
+
+        Cursor cursor = db.query(new SimpleSQLiteQuery(sql.toString(), args.toArray()));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P && cursor instanceof AbstractWindowedCursor) {
+            ((AbstractWindowedCursor) cursor).setWindow(new CursorWindow("logs", QUERY_CURSOR_WINDOW_BYTES));
+        }
+        return cursor;
+    }
+
+    // Adds the condition on the value of the parameter if it is present, returns false if the
+    // value is not a number
+    private static boolean addLongCondition(Uri uri, String name, String condition,
+                                            List<String> conditions, List<Object> args) {
+        String value = uri.getQueryParameter(name);
+        if (value == null) {
+            return true;
+        }
+        try {
+            args.add(Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        conditions.add(condition);
+        return true;
+    }
+
+    // Turns the text typed by the user into an FTS query matching the logs which contain words
+    // starting with each of the words of the text. Anything but letters and digits separates
+    // words, which also keeps the FTS query syntax out of the user's hands.
+    static String toMatchQuery(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder query = new StringBuilder();
+        for (String word : splitSearchWords(text)) {
+            if (query.length() > 0) {
+                query.append(' ');
+            }
+            query.append('"').append(word).append("*\"");
+        }
+        return query.toString();
+    }
+
+    // Splits a search text into its words, the same way the FTS index does
+    public static List<String> splitSearchWords(String text) {
+        List<String> words = new ArrayList<>();
+        for (String word : text.split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
     }
 
     private Cursor getCount() {
@@ -203,23 +708,132 @@ public class LoggingContentProvider extends ContentProvider {
         return db.getLogsBeforeDate(beforeMillis);
     }
 
-    @Database(entities = {LogEntry.class,}, version = 3, exportSchema = false)
+    @Database(entities = {LogEntry.class, LogSearchEntry.class,}, version = 7, exportSchema = false)
     public abstract static class LoggingRoomDatabase extends RoomDatabase {
         private static volatile LoggingRoomDatabase INSTANCE;
 
+        private static final int DELETE_CHUNK_ROWS = 500;
+        private static final int IMPORT_CHUNK_ROWS = 500;
+        private static final int SEARCH_INDEX_CHUNK_ROWS = 500;
+        // Preferences of the provider process, with the language of the status logs in the
+        // search index
+        private static final String SEARCH_INDEX_PREFERENCES = "loggingprovider_search_index";
+        private static final String SEARCH_INDEX_LOCALE = "locale";
+        private static final long AUTO_VACUUM_INCREMENTAL = 2;
+        // Largest database in use switched to incremental auto vacuum, which takes a full VACUUM,
+        // while the device is not charging
+        private static final long AUTO_VACUUM_CONVERSION_MAX_BYTES = 4 * 1024 * 1024;
+
+        // Adds the index used for the keyset paging of the status logs
+        private static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+            @Override
+            public void migrate(@NonNull SupportSQLiteDatabase database) {
+                database.execSQL("CREATE INDEX IF NOT EXISTS `index_log_is_diagnostic_timestamp__ID` " +
+                        "ON `log` (`is_diagnostic`, `timestamp`, `_ID`)");
+            }
+        };
+
+        // Replaces the logjson column with the LogPayload encoded payload column. SQLite can't
+        // drop columns, so the logs are copied over to a new table, converting them one by one.
+        // Status logs that can't be parsed are dropped, and their number logged.
+        private static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+            @Override
+            public void migrate(@NonNull SupportSQLiteDatabase database) {
+                database.execSQL("CREATE TABLE IF NOT EXISTS `log_new` (" +
+                        "`_ID` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+                        "`payload` BLOB NOT NULL, " +
+                        "`is_diagnostic` INTEGER NOT NULL, " +
+                        "`priority` INTEGER NOT NULL, " +
+                        "`timestamp` INTEGER NOT NULL)");
+                try (Cursor cursor = database.query("SELECT `_ID`, `logjson`, `is_diagnostic`, `priority`, `timestamp` FROM `log`");
+                     SupportSQLiteStatement statement = database.compileStatement(
+                             "INSERT INTO `log_new` (`_ID`, `payload`, `is_diagnostic`, `priority`, `timestamp`) VALUES (?, ?, ?, ?, ?)")) {
+                    int droppedCount = 0;
+                    while (cursor.moveToNext()) {
+                        boolean isDiagnostic = cursor.getInt(2) != 0;
+                        byte[] payload;
+                        try {
+                            payload = LogPayload.fromLegacyLogJson(cursor.getString(1), isDiagnostic);
+                        } catch (JSONException e) {
+                            droppedCount++;
+                            continue;
+                        }
+                        statement.bindLong(1, cursor.getLong(0));
+                        statement.bindBlob(2, payload);
+                        statement.bindLong(3, isDiagnostic ? 1 : 0);
+                        statement.bindLong(4, cursor.getLong(3));
+                        statement.bindLong(5, cursor.getLong(4));
+                        statement.executeInsert();
+                    }
+                    if (droppedCount > 0) {
+                        MyLog.w("LoggingContentProvider: dropped logs that failed to convert",
+                                "count", droppedCount);
+                    }
+                } catch (IOException ignored) {
+                    // Only thrown when closing the statement
+                }
+                database.execSQL("DROP TABLE `log`");
+                database.execSQL("ALTER TABLE `log_new` RENAME TO `log`");
+                database.execSQL("CREATE INDEX IF NOT EXISTS `index_log_timestamp` ON `log` (`timestamp`)");
+                database.execSQL("CREATE INDEX IF NOT EXISTS `index_log_is_diagnostic_timestamp__ID` " +
+                        "ON `log` (`is_diagnostic`, `timestamp`, `_ID`)");
+            }
+        };
+
+        private static final String CREATE_LOG_FTS_DELETE_TRIGGER =
+                "CREATE TRIGGER IF NOT EXISTS `log_fts_delete` AFTER DELETE ON `log` BEGIN " +
+                        "DELETE FROM `log_fts` WHERE `rowid` = OLD.`_ID`; END";
+
+        // Adds the full text search index, the existing logs are indexed by the first search
+        private static final Migration MIGRATION_5_6 = new Migration(5, 6) {
+            @Override
+            public void migrate(@NonNull SupportSQLiteDatabase database) {
+                database.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS `log_fts` USING FTS4(`text` TEXT NOT NULL)");
+            }
+        };
+
+        // Adds the index used by the priority filter of the logs URI
+        private static final Migration MIGRATION_6_7 = new Migration(6, 7) {
+            @Override
+            public void migrate(@NonNull SupportSQLiteDatabase database) {
+                database.execSQL("CREATE INDEX IF NOT EXISTS `index_log_priority_timestamp` " +
+                        "ON `log` (`priority`, `timestamp`)");
+            }
+        };
+
+        // Context used to render the status logs for the search index
+        private Context context;
+        // Serializes the updates of the search index
+        private final Object searchIndexLock = new Object();
+        // Log shards opened so far, guarded by logShards
+        private final List<LogShard> logShards = new ArrayList<>();
+        private final List<String> logShardPaths = new ArrayList<>();
+
         private static LoggingRoomDatabase getDatabase(final Context context) {
             if (INSTANCE == null) {
                 synchronized (LoggingRoomDatabase.class) {
                     if (INSTANCE == null) {
-                        INSTANCE = Room.databaseBuilder(context.getApplicationContext(),
+                        LoggingRoomDatabase database = Room.databaseBuilder(context.getApplicationContext(),
                                 LoggingRoomDatabase.class, "loggingprovider.db")
                                 // Here we are migrating from plain SQLiteOpenHelper to Room; we are
                                 // not providing migration strategy, because in the previous
                                 // version(#2) the logs table is fully truncated every time the app
                                 // starts fresh.
                                 .fallbackToDestructiveMigration()
+                                .addMigrations(MIGRATION_3_4, MIGRATION_4_5, MIGRATION_5_6, MIGRATION_6_7)
+                                .addCallback(new Callback() {
+                                    // The trigger is not part of the Room schema, so it is
+                                    // created on every open: a destructive migration recreates
+                                    // the tables without calling onCreate
+                                    @Override
+                                    public void onOpen(@NonNull SupportSQLiteDatabase db) {
+                                        db.execSQL(CREATE_LOG_FTS_DELETE_TRIGGER);
+                                    }
+                                })
                                 .setQueryExecutor(Executors.newSingleThreadExecutor())
                                 .build();
+                        database.context = context.getApplicationContext();
+                        INSTANCE = database;
                     }
                 }
             }
@@ -228,8 +842,304 @@ public class LoggingContentProvider extends ContentProvider {
 
         protected abstract LogEntryDao logEntryDao();
 
-        public int deleteLogEntriesBefore(long beforeDateMillis) {
-            return logEntryDao().deleteLogsBefore(beforeDateMillis);
+        // Inserts the logs with a prepared statement in one transaction, returns the largest
+        // row id of the status logs inserted, or -1 if there are none. The logs are added to the
+        // search index by the next search.
+        public long insertLogs(ContentValues[] logs) {
+            long statusLogId = -1;
+            SupportSQLiteDatabase database = getOpenHelper().getWritableDatabase();
+            database.beginTransaction();
+            try (SupportSQLiteStatement statement = database.compileStatement(
+                    "INSERT INTO log (payload, is_diagnostic, priority, timestamp) VALUES (?, ?, ?, ?)")) {
+                for (ContentValues log : logs) {
+                    boolean isDiagnostic = log.getAsBoolean("is_diagnostic");
+                    byte[] payload = log.getAsByteArray("payload");
+                    statement.bindBlob(1, payload);
+                    statement.bindLong(2, isDiagnostic ? 1 : 0);
+                    statement.bindLong(3, log.getAsInteger("priority"));
+                    statement.bindLong(4, log.getAsLong("timestamp"));
+                    long id = statement.executeInsert();
+                    if (!isDiagnostic) {
+                        statusLogId = Math.max(statusLogId, id);
+                    }
+                }
+                database.setTransactionSuccessful();
+            } catch (IOException ignored) {
+                // Only thrown when closing the statement
+            } finally {
+                database.endTransaction();
+            }
+            return statusLogId;
+        }
+
+        // Brings the search index up to date before it is used. The logs are indexed as they
+        // are displayed, the status logs in the language currently chosen in the app, which the
+        // process may have been started with another one of, so the whole index is rebuilt
+        // when the language changes. The logs are indexed here rather than as they are
+        // inserted, which keeps their decoding and rendering off the ingest path, and the logs
+        // newer than the newest indexed one go SEARCH_INDEX_CHUNK_ROWS rows per transaction.
+        public void updateSearchIndex() {
+            synchronized (searchIndexLock) {
+                Context localeContext = LocaleManager.getInstance(context).setLocale(context);
+                String locale = ConfigurationCompat.getLocales(
+                        localeContext.getResources().getConfiguration()).get(0).toString();
+                SupportSQLiteDatabase database = getOpenHelper().getWritableDatabase();
+                SharedPreferences preferences =
+                        context.getSharedPreferences(SEARCH_INDEX_PREFERENCES, Context.MODE_PRIVATE);
+                if (!locale.equals(preferences.getString(SEARCH_INDEX_LOCALE, null))) {
+                    database.execSQL("DELETE FROM log_fts");
+                    preferences.edit().putString(SEARCH_INDEX_LOCALE, locale).commit();
+                }
+                int indexedRows;
+                do {
+                    indexedRows = indexLogsChunk(database, localeContext);
+                } while (indexedRows == SEARCH_INDEX_CHUNK_ROWS);
+            }
+        }
+
+        // Indexes the logs newer than the newest indexed one, up to SEARCH_INDEX_CHUNK_ROWS of
+        // them, returns the number of logs indexed. Logs are only ever deleted from the index
+        // along with the log, so the logs older than the newest indexed one are all indexed.
+        private int indexLogsChunk(SupportSQLiteDatabase database, Context localeContext) {
+            int indexedRows = 0;
+            database.beginTransaction();
+            try (Cursor cursor = database.query("SELECT _ID, payload, is_diagnostic FROM log " +
+                            "WHERE _ID > IFNULL((SELECT rowid FROM log_fts ORDER BY rowid DESC LIMIT 1), 0) " +
+                            "ORDER BY _ID LIMIT ?", new Object[]{SEARCH_INDEX_CHUNK_ROWS});
+                 SupportSQLiteStatement statement = database.compileStatement(
+                         "INSERT INTO log_fts (rowid, text) VALUES (?, ?)")) {
+                while (cursor.moveToNext()) {
+                    statement.bindLong(1, cursor.getLong(0));
+                    statement.bindString(2, getSearchText(localeContext, cursor.getBlob(1), cursor.getInt(2) != 0));
+                    statement.executeInsert();
+                    indexedRows++;
+                }
+                database.setTransactionSuccessful();
+            } catch (IOException ignored) {
+                // Only thrown when closing the statement
+            } finally {
+                database.endTransaction();
+            }
+            return indexedRows;
+        }
+
+        // The logs are indexed as they are displayed
+        private static String getSearchText(Context context, byte[] payload, boolean isDiagnostic) {
+            return isDiagnostic ? MyLog.getDiagnosticLogMessageForDisplay(payload) :
+                    MyLog.getStatusLogMessageForDisplay(payload, context);
+        }
+
+        // Deletes the logs older than beforeDateMillis, then the oldest logs until there are
+        // no more than maxRows logs and no more than maxBytes of the database file in use.
+        // The deletes go DELETE_CHUNK_ROWS rows per transaction so that a large backlog of old
+        // logs doesn't hold the write lock for long, and the pages freed are then given back to
+        // the file system with an incremental vacuum. Returns the number of logs deleted.
+        public int deleteLogEntries(long beforeDateMillis, long maxRows, long maxBytes) {
+            long startTime = SystemClock.elapsedRealtime();
+            SupportSQLiteDatabase database = getOpenHelper().getWritableDatabase();
+            long pageSize = queryLong(database, "PRAGMA page_size");
+            long initialFileBytes = queryLong(database, "PRAGMA page_count") * pageSize;
+
+            int deletedRows = 0;
+            int deletedChunkRows;
+            do {
+                deletedChunkRows = logEntryDao().deleteLogsBefore(beforeDateMillis, DELETE_CHUNK_ROWS);
+                deletedRows += deletedChunkRows;
+            } while (deletedChunkRows == DELETE_CHUNK_ROWS);
+
+            long rows = logEntryDao().getLogsCount();
+            long usedBytes = getUsedBytes(database, pageSize);
+            while (rows > 0 && (rows > maxRows || usedBytes > maxBytes)) {
+                // Freed pages only show once whole pages are emptied, so the byte budget is
+                // checked again after every chunk
+                int limit = rows > maxRows ? (int) Math.min(rows - maxRows, DELETE_CHUNK_ROWS) : DELETE_CHUNK_ROWS;
+                deletedChunkRows = logEntryDao().deleteOldestLogs(limit);
+                if (deletedChunkRows == 0) {
+                    break;
+                }
+                deletedRows += deletedChunkRows;
+                rows -= deletedChunkRows;
+                usedBytes = getUsedBytes(database, pageSize);
+            }
+
+            // The auto_vacuum mode only takes effect with a full VACUUM once tables exist, which
+            // Room creates before any callback. A VACUUM rewrites the whole database under the
+            // write lock, with as much temporary space, so databases are only switched once the
+            // budgets have just been enforced, which bounds the work, and if there is room for
+            // the copy. Small databases, which new databases are, are switched right away,
+            // larger ones once the device is charging. Until then the freed pages are left in
+            // the file and reused.
+            if (queryLong(database, "PRAGMA auto_vacuum") == AUTO_VACUUM_INCREMENTAL) {
+                queryLong(database, "PRAGMA incremental_vacuum");
+            } else if (usedBytes <= maxBytes &&
+                    (usedBytes <= AUTO_VACUUM_CONVERSION_MAX_BYTES || isCharging(context)) &&
+                    new File(database.getPath()).getParentFile().getUsableSpace() > 2 * usedBytes) {
+                database.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                database.execSQL("VACUUM");
+            }
+            long fileBytes = queryLong(database, "PRAGMA page_count") * pageSize;
+
+            MyLog.i("LoggingContentProvider: deleted logs",
+                    "deletedRows", deletedRows,
+                    "remainingRows", rows,
+                    "reclaimedBytes", initialFileBytes - fileBytes,
+                    "fileBytes", fileBytes,
+                    "durationMillis", SystemClock.elapsedRealtime() - startTime);
+            return deletedRows;
+        }
+
+        private static boolean isCharging(Context context) {
+            Intent batteryStatus = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            return batteryStatus != null && batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        }
+
+        private static long getUsedBytes(SupportSQLiteDatabase database, long pageSize) {
+            return (queryLong(database, "PRAGMA page_count") -
+                    queryLong(database, "PRAGMA freelist_count")) * pageSize;
+        }
+
+        // Returns the first column of the first row of the query, 0 if there is none
+        private static long queryLong(SupportSQLiteDatabase database, String sql) {
+            try (Cursor cursor = database.query(sql)) {
+                return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+            }
+        }
+
+        // Moves the logs of the log shards to this database with a k-way merge by timestamp of
+        // the shards, so that the logs of all processes are given row ids in timestamp order.
+        // The shards are read IMPORT_CHUNK_ROWS logs at a time each, the merge stops as soon
+        // as a shard runs out of read logs and the logs merged so far are inserted and then
+        // deleted from their shards. Logs which could not be deleted, because the writer held
+        // the lock, are skipped by the next imports and deleted then. They are only imported
+        // twice if the provider dies before they are deleted. Returns the largest row id of
+        // the status logs imported, or -1 if there are none.
+        public long importLogShards() {
+            long statusLogId = -1;
+            synchronized (logShards) {
+                try {
+                    for (LogShard shard : LogShard.openAll(context, logShardPaths)) {
+                        logShards.add(shard);
+                        logShardPaths.add(shard.getPath());
+                    }
+                } catch (SQLiteException e) {
+                    MyLog.w("LoggingContentProvider: failed to open log shard", "error", e.toString());
+                }
+                long[] chunkStatusLogId = new long[1];
+                try {
+                    boolean hasMore;
+                    do {
+                        chunkStatusLogId[0] = -1;
+                        hasMore = importLogShardsChunk(chunkStatusLogId);
+                        statusLogId = Math.max(statusLogId, chunkStatusLogId[0]);
+                    } while (hasMore);
+                } catch (SQLiteException e) {
+                    MyLog.w("LoggingContentProvider: failed to import log shard", "error", e.toString());
+                }
+                for (LogShard shard : logShards) {
+                    if (shard.getImportedId() < 0) {
+                        continue;
+                    }
+                    try {
+                        shard.deleteImportedLogs();
+                    } catch (SQLiteException e) {
+                        MyLog.w("LoggingContentProvider: failed to delete imported logs", "error", e.toString());
+                    }
+                }
+            }
+            return statusLogId;
+        }
+
+        // Returns true if there are more logs to import, and the largest row id of the status
+        // logs imported in statusLogId
+        private boolean importLogShardsChunk(long[] statusLogId) {
+            PriorityQueue<LogShardCursor> cursors = new PriorityQueue<>(Math.max(1, logShards.size()),
+                    (a, b) -> Long.compare(a.getTimestamp(), b.getTimestamp()));
+            List<LogShardCursor> openedCursors = new ArrayList<>();
+            List<ContentValues> logs = new ArrayList<>();
+            boolean hasMore = false;
+            try {
+                for (LogShard shard : logShards) {
+                    LogShardCursor cursor = new LogShardCursor(shard, shard.queryLogsToImport(IMPORT_CHUNK_ROWS));
+                    openedCursors.add(cursor);
+                    if (cursor.moveToNext()) {
+                        cursors.add(cursor);
+                    }
+                }
+                while (!cursors.isEmpty()) {
+                    LogShardCursor cursor = cursors.poll();
+                    logs.add(cursor.getLog());
+                    if (cursor.moveToNext()) {
+                        cursors.add(cursor);
+                    } else if (cursor.getCount() == IMPORT_CHUNK_ROWS) {
+                        // The shard may have older logs than the ones left in the other shards
+                        hasMore = true;
+                        break;
+                    }
+                }
+            } catch (SQLiteException e) {
+                MyLog.w("LoggingContentProvider: failed to read log shard", "error", e.toString());
+                hasMore = false;
+            } finally {
+                for (LogShardCursor cursor : openedCursors) {
+                    cursor.close();
+                }
+            }
+            if (logs.isEmpty()) {
+                return false;
+            }
+            statusLogId[0] = insertLogs(logs.toArray(new ContentValues[0]));
+            for (LogShardCursor cursor : openedCursors) {
+                if (cursor.getLastId() >= 0) {
+                    cursor.getShard().setImportedId(cursor.getLastId());
+                }
+            }
+            return hasMore;
+        }
+
+        // Cursor over the logs of a shard which keeps the row id of the last log read
+        private static class LogShardCursor {
+            private final LogShard shard;
+            private final Cursor cursor;
+            private long lastId = -1;
+
+            LogShardCursor(LogShard shard, Cursor cursor) {
+                this.shard = shard;
+                this.cursor = cursor;
+            }
+
+            boolean moveToNext() {
+                return cursor.moveToNext();
+            }
+
+            int getCount() {
+                return cursor.getCount();
+            }
+
+            long getTimestamp() {
+                return cursor.getLong(4);
+            }
+
+            ContentValues getLog() {
+                lastId = cursor.getLong(0);
+                ContentValues values = new ContentValues();
+                values.put("payload", cursor.getBlob(1));
+                values.put("is_diagnostic", cursor.getInt(2) != 0);
+                values.put("priority", cursor.getInt(3));
+                values.put("timestamp", cursor.getLong(4));
+                return values;
+            }
+
+            LogShard getShard() {
+                return shard;
+            }
+
+            long getLastId() {
+                return lastId;
+            }
+
+            void close() {
+                cursor.close();
+            }
         }
 
         public Cursor getLastStatusLogEntry() {
@@ -244,8 +1154,28 @@ public class LoggingContentProvider extends ContentProvider {
             return logEntryDao().getStatusLogsCount();
         }
 
-        public Cursor getStatusLogs(int offset, int limit) {
-            return logEntryDao().getStatusLogs(offset, limit);
+        public Cursor getLatestStatusLogs(int limit) {
+            return logEntryDao().getLatestStatusLogs(limit);
+        }
+
+        public Cursor getStatusLogsBefore(long timestamp, long id, int limit) {
+            return logEntryDao().getStatusLogsBefore(timestamp, id, limit);
+        }
+
+        public Cursor getStatusLogsAfter(long timestamp, long id, int limit) {
+            return logEntryDao().getStatusLogsAfter(timestamp, id, limit);
+        }
+
+        public Cursor searchLatestStatusLogs(String query, int limit) {
+            return logEntryDao().searchLatestStatusLogs(query, limit);
+        }
+
+        public Cursor searchStatusLogsBefore(String query, long timestamp, long id, int limit) {
+            return logEntryDao().searchStatusLogsBefore(query, timestamp, id, limit);
+        }
+
+        public Cursor searchStatusLogsAfter(String query, long timestamp, long id, int limit) {
+            return logEntryDao().searchStatusLogsAfter(query, timestamp, id, limit);
         }
     }
 }
@@ -25,15 +25,16 @@ import android.net.Uri;
 
 import androidx.annotation.NonNull;
 import androidx.paging.DataSource;
-import androidx.paging.PositionalDataSource;
+import androidx.paging.ItemKeyedDataSource;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
-public class LogsDataSourceFactory extends DataSource.Factory<Integer, LogEntry> {
+public class LogsDataSourceFactory extends DataSource.Factory<LogEntry, LogEntry> {
     private final ContentResolver contentResolver;
     private LogsDataSource dataSource;
+    private volatile String searchText = "";
 
     public LogsDataSourceFactory(ContentResolver contentResolver) {
         this.contentResolver = contentResolver;
@@ -41,65 +42,96 @@ public class LogsDataSourceFactory extends DataSource.Factory<Integer, LogEntry>
 
     @NonNull
     @Override
-    public DataSource<Integer, LogEntry> create() {
-        dataSource = new LogsDataSource(contentResolver);
+    public DataSource<LogEntry, LogEntry> create() {
+        String searchText = this.searchText;
+        // A new search starts from the newest logs rather than from where the list was
+        boolean isNewSearch = dataSource != null && !dataSource.searchText.equals(searchText);
+        dataSource = new LogsDataSource(contentResolver, searchText, isNewSearch);
         return dataSource;
     }
 
+    // Limits the logs to the ones matching the search text, all of the logs if it is empty.
+    // Takes effect with the next data source.
+    public void setSearchText(String searchText) {
+        this.searchText = searchText == null ? "" : searchText.trim();
+    }
+
     public void invalidateDataSource() {
         if (dataSource != null) {
             dataSource.invalidate();
         }
     }
 
-    private static class LogsDataSource extends PositionalDataSource<LogEntry> {
+    // Status logs, newest first, keyed by their (timestamp, id). Pages are loaded relative to
+    // the key of the first or last loaded log, so after an invalidation the list is loaded
+    // again from where it was and new logs are only loaded as a page before the newest one.
+    // While searching, the same pages are loaded from the search/status URIs.
+    private static class LogsDataSource extends ItemKeyedDataSource<LogEntry, LogEntry> {
         private final ContentResolver contentResolver;
+        private final String searchText;
+        private final boolean isNewSearch;
 
-        public LogsDataSource(ContentResolver contentResolver) {
+        public LogsDataSource(ContentResolver contentResolver, String searchText, boolean isNewSearch) {
             this.contentResolver = contentResolver;
+            this.searchText = searchText;
+            this.isNewSearch = isNewSearch;
         }
 
         @Override
-        public void loadInitial(@NonNull LoadInitialParams params, @NonNull LoadInitialCallback<LogEntry> callback) {
-            int firstLoadPosition = 0;
-            int firstLoadSize = 0;
-            int totalCount = getStatusLogsCount();
-
-            if (totalCount != 0) {
-                firstLoadPosition = computeInitialLoadPosition(params, totalCount);
-                firstLoadSize = computeInitialLoadSize(params, firstLoadPosition, totalCount);
+        public void loadInitial(@NonNull LoadInitialParams<LogEntry> params, @NonNull LoadInitialCallback<LogEntry> callback) {
+            LogEntry key = isNewSearch ? null : params.requestedInitialKey;
+            Uri.Builder builder = statusLogsUriBuilder();
+            if (key == null) {
+                builder.appendPath("latest");
+            } else {
+                // Include the log of the key itself
+                builder.appendPath("before")
+                        .appendPath(String.valueOf(key.getTimestamp()))
+                        .appendPath(String.valueOf(key.getId() + 1L));
             }
-            callback.onResult(getStatusLogs(firstLoadPosition, firstLoadSize), firstLoadPosition, totalCount);
+            Uri uri = builder.appendPath("limit")
+                    .appendPath(String.valueOf(params.requestedLoadSize))
+                    .build();
+            callback.onResult(getStatusLogs(uri, false));
         }
 
-        private int getStatusLogsCount() {
-            int count = 0;
-            Uri uri = LoggingContentProvider.CONTENT_URI.buildUpon()
-                    .appendPath("status")
-                    .appendPath("count")
-                    .build();
+        @Override
+        public void loadAfter(@NonNull LoadParams<LogEntry> params, @NonNull LoadCallback<LogEntry> callback) {
+            callback.onResult(getStatusLogs(buildUri("before", params), false));
+        }
 
-            try (Cursor cursor = contentResolver.query(uri, null, null, null, null)) {
-                if (cursor != null && cursor.moveToFirst()) {
-                    count = cursor.getInt(0);
-                }
-            }
-            return count;
+        @Override
+        public void loadBefore(@NonNull LoadParams<LogEntry> params, @NonNull LoadCallback<LogEntry> callback) {
+            // Newer logs are returned oldest first, the list needs them newest first
+            callback.onResult(getStatusLogs(buildUri("after", params), true));
         }
 
+        @NonNull
         @Override
-        public void loadRange(@NonNull LoadRangeParams params, @NonNull LoadRangeCallback<LogEntry> callback) {
-            callback.onResult(getStatusLogs(params.startPosition, params.loadSize));
+        public LogEntry getKey(@NonNull LogEntry item) {
+            return item;
+        }
+
+        private Uri.Builder statusLogsUriBuilder() {
+            Uri.Builder builder = LoggingContentProvider.CONTENT_URI.buildUpon();
+            if (!searchText.isEmpty()) {
+                builder.appendPath("search")
+                        .appendQueryParameter(LoggingContentProvider.QUERY_PARAMETER_SEARCH, searchText);
+            }
+            return builder.appendPath("status");
         }
 
-        private List<LogEntry> getStatusLogs(int offset, int limit) {
-            Uri uri = LoggingContentProvider.CONTENT_URI.buildUpon()
-                    .appendPath("status")
-                    .appendPath("offset")
-                    .appendPath(String.valueOf(offset))
+        private Uri buildUri(String direction, LoadParams<LogEntry> params) {
+            return statusLogsUriBuilder()
+                    .appendPath(direction)
+                    .appendPath(String.valueOf(params.key.getTimestamp()))
+                    .appendPath(String.valueOf(params.key.getId()))
                     .appendPath("limit")
-                    .appendPath(String.valueOf(limit))
+                    .appendPath(String.valueOf(params.requestedLoadSize))
                     .build();
+        }
+
+        private List<LogEntry> getStatusLogs(Uri uri, boolean reverse) {
             try (Cursor cursor = contentResolver.query(uri, null, null, null, null)) {
                 if (cursor == null) {
                     return Collections.emptyList();
@@ -109,6 +141,9 @@ public class LogsDataSourceFactory extends DataSource.Factory<Integer, LogEntry>
                     final LogEntry logEntry = LoggingContentProvider.convertRows(cursor);
                     logEntryList.add(logEntry);
                 }
+                if (reverse) {
+                    Collections.reverse(logEntryList);
+                }
                 return logEntryList;
             }
         }
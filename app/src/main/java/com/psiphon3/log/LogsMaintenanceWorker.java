@@ -39,6 +39,9 @@ public class LogsMaintenanceWorker extends Worker {
     static int REPEAT_INTERVAL_HOURS = 6;
     static long DAY_IN_MS = 1000 * 60 * 60 * 24;
     static int DELETE_LOGS_AFTER_DAYS = 2;
+    // Logs are also deleted, oldest first, while the database is over either budget
+    static long MAX_LOG_ROWS = 50000;
+    static long MAX_LOG_BYTES = 16 * 1024 * 1024;
 
 
     static public void schedule(Context context) {
@@ -63,9 +66,16 @@ public class LogsMaintenanceWorker extends Worker {
     @NonNull
     @Override
     public Result doWork() {
+        // Effectiveness of the string resource lookups cache of this process, since it started
+        MyLog.i("LogsMaintenanceWorker: string resource cache",
+                "hitCount", StringResourceCache.getHitCount(),
+                "missCount", StringResourceCache.getMissCount());
+
         Uri uri = LoggingContentProvider.CONTENT_URI.buildUpon()
                 .appendPath("delete")
                 .appendPath(String.valueOf(new Date().getTime() - DELETE_LOGS_AFTER_DAYS * DAY_IN_MS))
+                .appendQueryParameter(LoggingContentProvider.QUERY_PARAMETER_MAX_ROWS, String.valueOf(MAX_LOG_ROWS))
+                .appendQueryParameter(LoggingContentProvider.QUERY_PARAMETER_MAX_BYTES, String.valueOf(MAX_LOG_BYTES))
                 .build();
         getApplicationContext().getContentResolver().delete(uri, null, null);
         return Result.success();
@@ -21,36 +21,127 @@ package com.psiphon3.log;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.sqlite.SQLiteException;
 import android.util.Log;
 
 import androidx.annotation.StringRes;
 
 import com.psiphon3.BuildConfig;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
-import java.util.Date;
-import java.util.concurrent.ExecutorService;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MyLog {
     private static final String TAG = "Psiphon";
-    private static final ExecutorService executorService = Executors.newSingleThreadExecutor();
+    private static final ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor();
+
+    // Logs are not sent to the LoggingContentProvider one by one but buffered and sent in
+    // batches with a single bulkInsert() each, which the provider writes in one transaction.
+    // A batch is sent once maxBatchSize logs are pending, or at the latest flushDelayMillis
+    // after the first pending log. Status logs are displayed to the user and are sent right
+    // away. At most maxPendingLogs are buffered, the oldest are dropped if the provider does
+    // not keep up. See FlushPolicy.
+    private static volatile FlushPolicy flushPolicy = FlushPolicy.DEFAULT;
+
+    // Logging calls only capture the log and its arguments, by reference, in a LogRecord taken
+    // from a pool and queue it. The logging thread drains the queue and does all of the
+    // encoding, so that logging from the main thread or other hot paths is cheap. Arguments
+    // are expected not to change after being logged. If the logging thread falls behind by
+    // more than MAX_QUEUED_LOG_RECORDS logs, new logs are dropped and counted, except for the
+    // notices offered with offerNotice(), which are left to the caller.
+    private static final int MAX_QUEUED_LOG_RECORDS = 1000;
+    private static final ArrayBlockingQueue<LogRecord> queuedLogRecords = new ArrayBlockingQueue<>(MAX_QUEUED_LOG_RECORDS);
+    private static final ArrayBlockingQueue<LogRecord> freeLogRecords = new ArrayBlockingQueue<>(MAX_QUEUED_LOG_RECORDS);
+    private static final AtomicBoolean isDrainScheduled = new AtomicBoolean(false);
+    private static final AtomicInteger droppedLogCount = new AtomicInteger(0);
+    private static final Runnable drainLogRecordsRunnable = MyLog::drainLogRecords;
+
+    private static final ArrayDeque<LogRingBuffer.Entry> pendingLogs = new ArrayDeque<>();
+    private static ScheduledFuture<?> scheduledFlush;
+    private static boolean isFlushRequested;
+
+    // Logs are also appended to a memory-mapped file, one per process, until they are known to
+    // be in the logs database. This keeps the logs made before the logger is set, when they
+    // can't be sent to the provider yet, and the pending logs if the process dies before they
+    // are sent. The logs left in the file are sent once the logger is set, including the ones
+    // left by a previous process that died. If the file fills up its oldest logs are
+    // overwritten, and logs are released from it as their batches reach a database.
+    private static final String LOG_BUFFER_DIRECTORY = "logbuffer";
+    private static final int LOG_BUFFER_SIZE = 256 * 1024;
+    private static volatile LogRingBuffer logBuffer;
+    private static volatile Context logBufferContext;
+    // Only accessed by the logging thread
+    private static boolean isLogBufferReplayed;
+
+    // Processes which log a lot, like the tunnel service, write their logs to their own log
+    // shard instead of sending them to the provider, see LogShard. Falls back to the provider
+    // if writing to the shard fails.
+    private static volatile LogShard logShard;
 
     // It is expected that the logger implementation will be an Activity, so
     // we're only going to hold a weak reference to it -- we don't want to
     // interfere with it being destroyed in low memory situations. This class
     // can cope with the logger going away and being re-set later on.
-    static private WeakReference<ILogger> logger = new WeakReference<>(null);
+    static private volatile WeakReference<ILogger> logger = new WeakReference<>(null);
 
 
     public interface ILogger {
         Context getContext();
     }
 
+    // How the pending logs of the process are batched, set with openLogShard()
+    public static class FlushPolicy {
+        // Batches sent to the provider stay well within the Binder transaction size limit
+        public static final FlushPolicy DEFAULT = new FlushPolicy(100, 500, 2000);
+
+        final int maxBatchSize;
+        final long flushDelayMillis;
+        final int maxPendingLogs;
+
+        public FlushPolicy(int maxBatchSize, long flushDelayMillis, int maxPendingLogs) {
+            if (maxBatchSize <= 0 || flushDelayMillis < 0 || maxPendingLogs < maxBatchSize) {
+                throw new IllegalArgumentException("Invalid flush policy.");
+            }
+            this.maxBatchSize = maxBatchSize;
+            this.flushDelayMillis = flushDelayMillis;
+            this.maxPendingLogs = maxPendingLogs;
+        }
+    }
+
+    private static class LogRecord {
+        static final int TYPE_STATUS = 1;
+        static final int TYPE_DIAGNOSTIC = 2;
+        static final int TYPE_NOTICE = 3;
+
+        int type;
+        int priority;
+        long timestamp;
+        // Status logs only
+        int resId;
+        int sensitivity;
+        // Diagnostic log message or notice
+        String msg;
+        // Status log format args or diagnostic log name/value pairs
+        Object[] args;
+
+        void recycle() {
+            msg = null;
+            args = null;
+            freeLogRecords.offer(this);
+        }
+    }
+
     /**
      * Used to indicate the sensitivity level of the log. This will affect
      * log handling in some situations (like sending as diagnostic info).
@@ -75,159 +166,389 @@ public class MyLog {
         public static final int SENSITIVE_FORMAT_ARGS = 4;
     }
 
+    // Meant to be called first thing when the process starts, so that the logs are kept from
+    // then on, even before the logger is set
+    static public void openLogBuffer(Context context) {
+        if (logBuffer != null) {
+            return;
+        }
+        File directory = new File(context.getFilesDir(), LOG_BUFFER_DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Failed to create the log buffer directory.");
+            return;
+        }
+        File file = new File(directory, getProcessName().replace(':', '_') + ".ring");
+        try {
+            logBufferContext = context.getApplicationContext();
+            logBuffer = LogRingBuffer.open(file, LOG_BUFFER_SIZE);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to open the log buffer: " + e);
+        }
+    }
+
+    // Meant to be called when the process starts, before logging much. The shard is opened on
+    // the logging thread, the logs sent before then go to the provider. The logs of the
+    // process are batched by flushPolicy from then on, whether the shard opens or not.
+    static public void openLogShard(Context context, FlushPolicy flushPolicy) {
+        MyLog.flushPolicy = flushPolicy;
+        Context applicationContext = context.getApplicationContext();
+        executorService.execute(() -> {
+            if (logShard != null) {
+                return;
+            }
+            try {
+                logShard = LogShard.open(applicationContext, getProcessName());
+            } catch (SQLiteException e) {
+                Log.w(TAG, "Failed to open the log shard: " + e);
+            }
+        });
+    }
+
     static public void setLogger(ILogger logger) {
-        MyLog.logger = new WeakReference<>(logger);
+        Context context = logger.getContext();
+        // The logger is set by the logging thread, so that the logs still queued to be encoded
+        // before this point are only added to the log buffer, which is replayed once
+        executorService.execute(() -> {
+            MyLog.logger = new WeakReference<>(logger);
+            replayLogBuffer();
+            StringResourceCache.warmUp(context);
+        });
     }
 
     // Status log with priority Log.VERBOSE
     // Displayed to the user and included in feedback if the user consents
     static public void v(@StringRes int resId, int sensitivity, Object... formatArgs) {
-        storeStatusLog(resId, formatArgs, sensitivity, Log.VERBOSE, new Date());
+        storeStatusLog(resId, formatArgs, sensitivity, Log.VERBOSE, System.currentTimeMillis());
     }
 
     // Diagnostic log with priority Log.VERBOSE
     // Internal only and included in feedback if the user consents
     static public void v(String msg, Object... nameValuePairs) {
-        storeDiagnosticLog(msg, nameValuePairs, Log.VERBOSE, new Date());
+        storeDiagnosticLog(msg, nameValuePairs, Log.VERBOSE, System.currentTimeMillis());
     }
 
     // Status log with priority Log.INFO
     // Displayed to the user and included in feedback if the user consents
     static public void i(@StringRes int resId, int sensitivity, Object... formatArgs) {
-        storeStatusLog(resId, formatArgs, sensitivity, Log.INFO, new Date());
+        storeStatusLog(resId, formatArgs, sensitivity, Log.INFO, System.currentTimeMillis());
     }
 
-    // Diagnostic log with priority Log.INFO that also takes timestamp
-    // Temporarily used for tunnel core notices logging in the TunnelManager.onDiagnosticMessage
-    // for the purpose of getting a more accurate timestamp.
-    static public void i(Date timestamp, String msg, Object... nameValuePairs) {
-        storeDiagnosticLog(msg, nameValuePairs, Log.INFO, timestamp);
+    // Tunnel core notice with priority Log.INFO, stored as is since it is already JSON
+    // Used for the notices received in TunnelManager.onDiagnosticMessage, which are timestamped
+    // as soon as they are received for the purpose of getting a more accurate timestamp.
+    // Internal only and included in feedback if the user consents
+    static public void notice(long timestamp, String notice) {
+        if (!enqueueLog(LogRecord.TYPE_NOTICE, Log.INFO, timestamp, 0, 0, notice, null)) {
+            droppedLogCount.incrementAndGet();
+        }
+    }
+
+    // Same as notice(), but returns false rather than dropping the notice if the logging thread
+    // is behind, for callers which queue the notices themselves and apply their own policy
+    static public boolean offerNotice(long timestamp, String notice) {
+        return enqueueLog(LogRecord.TYPE_NOTICE, Log.INFO, timestamp, 0, 0, notice, null);
     }
 
     // Diagnostic log with priority Log.INFO
     // Internal only and included in feedback if the user consents
     static public void i(String msg, Object... nameValuePairs) {
-        storeDiagnosticLog(msg, nameValuePairs, Log.INFO, new Date());
+        storeDiagnosticLog(msg, nameValuePairs, Log.INFO, System.currentTimeMillis());
     }
 
     // Status log with priority Log.WARN
     // Displayed to the user and included in feedback if the user consents
     static public void w(@StringRes int resId, int sensitivity, Object... formatArgs) {
-        storeStatusLog(resId, formatArgs, sensitivity, Log.WARN, new Date());
+        storeStatusLog(resId, formatArgs, sensitivity, Log.WARN, System.currentTimeMillis());
     }
 
     // Diagnostic log with priority Log.WARN
     // Internal only and included in feedback if the user consents
     static public void w(String msg, Object... nameValuePairs) {
-        storeDiagnosticLog(msg, nameValuePairs, Log.WARN, new Date());
+        storeDiagnosticLog(msg, nameValuePairs, Log.WARN, System.currentTimeMillis());
     }
 
     // Status log with priority Log.ERROR
     // Displayed to the user and included in feedback if the user consents
     static public void e(@StringRes int resId, int sensitivity, Object... formatArgs) {
-        storeStatusLog(resId, formatArgs, sensitivity, Log.ERROR, new Date());
+        storeStatusLog(resId, formatArgs, sensitivity, Log.ERROR, System.currentTimeMillis());
     }
 
     // Diagnostic log with priority Log.ERROR
     // Internal only and included in feedback if the user consents
     static public void e(String msg, Object... nameValuePairs) {
-        storeDiagnosticLog(msg, nameValuePairs, Log.ERROR, new Date());
+        storeDiagnosticLog(msg, nameValuePairs, Log.ERROR, System.currentTimeMillis());
     }
 
     private static void storeStatusLog(@StringRes int resId, Object[] formatArgs, int sensitivity,
-                                       int priority, Date timestamp) {
-        if (logger.get() == null) {
-            return;
-        }
-        try {
-            JSONObject logJsonObject = new JSONObject();
-
-            String stringResourceName = logger.get().getContext().getResources().getResourceName(resId);
-            logJsonObject.put("stringResourceName", stringResourceName);
-
-            logJsonObject.put("sensitivity", sensitivity);
-
-            JSONArray formatArgsJsonArray = new JSONArray();
-            for (Object arg : formatArgs) {
-                formatArgsJsonArray.put(arg);
-            }
-
-            logJsonObject.put("formatArgs", formatArgsJsonArray.length() == 0 ?
-                    JSONObject.NULL : formatArgsJsonArray);
-
-            storeLog(logJsonObject.toString(), false, priority, timestamp.getTime());
-        } catch (JSONException ignored) {
-            // fail silently
+                                       int priority, long timestamp) {
+        if (!enqueueLog(LogRecord.TYPE_STATUS, priority, timestamp, resId, sensitivity, null, formatArgs)) {
+            droppedLogCount.incrementAndGet();
         }
     }
 
     private static void storeDiagnosticLog(String msg, Object[] nameValuePairs, int priority,
-                                           Date timestamp) {
-        if (logger.get() == null) {
-            return;
-        }
+                                           long timestamp) {
         if (nameValuePairs.length % 2 != 0) {
             throw new IllegalArgumentException("Number of arguments in nameValuePairs must divide by 2.");
         }
-        JSONObject logJsonObject = new JSONObject();
-        JSONObject data = new JSONObject();
-        try {
-            for (int i = 0; i < nameValuePairs.length / 2; i++) {
-                data.put(nameValuePairs[i * 2].toString(), nameValuePairs[i * 2 + 1]);
-            }
-            logJsonObject.put("msg", msg);
-            logJsonObject.put("data", data);
+        if (!enqueueLog(LogRecord.TYPE_DIAGNOSTIC, priority, timestamp, 0, 0, msg, nameValuePairs)) {
+            droppedLogCount.incrementAndGet();
+        }
+    }
+
+    // Only captures the log in a pooled record, everything else is done by the logging thread.
+    // Returns false if the queue is full, in which case the log is not stored.
+    private static boolean enqueueLog(int type, int priority, long timestamp, int resId, int sensitivity,
+                                      String msg, Object[] args) {
+        if (logger.get() == null && logBuffer == null) {
+            // Nowhere to store the log yet, which is not the queue being full
+            return true;
+        }
+        LogRecord record = freeLogRecords.poll();
+        if (record == null) {
+            record = new LogRecord();
+        }
+        record.type = type;
+        record.priority = priority;
+        record.timestamp = timestamp;
+        record.resId = resId;
+        record.sensitivity = sensitivity;
+        record.msg = msg;
+        record.args = args;
+        if (!queuedLogRecords.offer(record)) {
+            record.recycle();
+            return false;
+        }
+        if (isDrainScheduled.compareAndSet(false, true)) {
+            executorService.execute(drainLogRecordsRunnable);
+        }
+        return true;
+    }
 
-            storeLog(logJsonObject.toString(), true, priority, timestamp.getTime());
-        } catch (JSONException ignored) {
-            // fail silently
+    // Encodes all of the queued log records on the logging thread
+    private static void drainLogRecords() {
+        // Reset first, so that records queued while draining schedule another drain
+        isDrainScheduled.set(false);
+        int dropped = droppedLogCount.getAndSet(0);
+        if (dropped > 0) {
+            storeLog(LogPayload.encodeDiagnostic("MyLog: dropped logs, queue full",
+                    new Object[]{"count", dropped}), true, Log.WARN, System.currentTimeMillis());
+        }
+        LogRecord record;
+        while ((record = queuedLogRecords.poll()) != null) {
+            ILogger currentLogger = logger.get();
+            // Logs made before the logger is set only go to the log buffer
+            Context context = currentLogger != null ? currentLogger.getContext() : logBufferContext;
+            if (context != null) {
+                switch (record.type) {
+                    case LogRecord.TYPE_STATUS:
+                        String stringResourceName = StringResourceCache.getName(context, record.resId);
+                        storeLog(LogPayload.encodeStatus(stringResourceName, record.sensitivity, record.args),
+                                false, record.priority, record.timestamp);
+                        break;
+                    case LogRecord.TYPE_DIAGNOSTIC:
+                        storeLog(LogPayload.encodeDiagnostic(record.msg, record.args),
+                                true, record.priority, record.timestamp);
+                        break;
+                    case LogRecord.TYPE_NOTICE:
+                        storeLog(LogPayload.encodeNotice(record.msg),
+                                true, record.priority, record.timestamp);
+                        break;
+                }
+            }
+            record.recycle();
         }
     }
 
-    private static void storeLog(String logjson, boolean isDiagnostic, int priority, long timestamp) {
-        if (logger.get() == null) {
+    private static void storeLog(byte[] payload, boolean isDiagnostic, int priority, long timestamp) {
+        LogRingBuffer currentLogBuffer = logBuffer;
+        // Logs too large for the log buffer are still sent as usual
+        long logBufferSequence = currentLogBuffer == null ? -1 :
+                currentLogBuffer.append(payload, isDiagnostic, priority, timestamp);
+        ILogger currentLogger = logger.get();
+        if (currentLogger == null) {
             return;
         }
         ContentValues values = new ContentValues();
-        values.put("logjson", logjson);
+        values.put("payload", payload);
         values.put("is_diagnostic", isDiagnostic);
         values.put("priority", priority);
         values.put("timestamp", timestamp);
-
-        executorService.execute(() ->
-                logger.get().getContext().getContentResolver()
-                        .insert(LoggingContentProvider.CONTENT_URI, values));
+        addPendingLog(new LogRingBuffer.Entry(logBufferSequence, values));
 
         if (BuildConfig.DEBUG) {
             if (isDiagnostic) {
-                Log.println(priority, TAG, logjson.replaceAll("\\\\", ""));
+                Log.println(priority, TAG, getDiagnosticLogMessageForDisplay(payload));
             } else {
-                Log.println(priority, TAG, getStatusLogMessageForDisplay(logjson, logger.get().getContext()));
+                Log.println(priority, TAG, getStatusLogMessageForDisplay(payload, currentLogger.getContext()));
             }
         }
     }
 
-    public static String getStatusLogMessageForDisplay(String logjson, Context context) {
-        try {
-            JSONObject jsonObject = new JSONObject(logjson);
-            JSONArray formatArgsJSONArray = jsonObject.optJSONArray("formatArgs");
-            Object[] formatArgs = null;
-            if (formatArgsJSONArray != null) {
-                formatArgs = new Object[formatArgsJSONArray.length()];
-                for (int i = 0; i < formatArgsJSONArray.length(); i++) {
-                    formatArgs[i] = formatArgsJSONArray.get(i);
+    // Sends the logs left in the log buffer, called on the logging thread once the logger is
+    // set. The logs stored from then on are both in the log buffer and pending, so this is only
+    // done once.
+    private static void replayLogBuffer() {
+        LogRingBuffer currentLogBuffer = logBuffer;
+        if (currentLogBuffer == null || isLogBufferReplayed) {
+            return;
+        }
+        isLogBufferReplayed = true;
+        List<LogRingBuffer.Entry> logs = currentLogBuffer.read();
+        for (LogRingBuffer.Entry entry : logs) {
+            addPendingLog(entry);
+        }
+        if (!logs.isEmpty()) {
+            synchronized (pendingLogs) {
+                if (!isFlushRequested) {
+                    isFlushRequested = true;
+                    executorService.execute(MyLog::flushPendingLogs);
+                }
+            }
+        }
+    }
+
+    private static void addPendingLog(LogRingBuffer.Entry entry) {
+        boolean isDiagnostic = entry.values.getAsBoolean("is_diagnostic");
+        FlushPolicy currentFlushPolicy = flushPolicy;
+        synchronized (pendingLogs) {
+            if (pendingLogs.size() >= currentFlushPolicy.maxPendingLogs) {
+                pendingLogs.pollFirst();
+            }
+            pendingLogs.addLast(entry);
+            if (!isDiagnostic || pendingLogs.size() >= currentFlushPolicy.maxBatchSize) {
+                if (!isFlushRequested) {
+                    isFlushRequested = true;
+                    executorService.execute(MyLog::flushPendingLogs);
                 }
+            } else if (scheduledFlush == null) {
+                scheduledFlush = executorService.schedule(MyLog::flushPendingLogs,
+                        currentFlushPolicy.flushDelayMillis, TimeUnit.MILLISECONDS);
             }
+        }
+    }
 
-            int resourceID = context.getResources().getIdentifier(jsonObject.getString("stringResourceName"), null, null);
-            if (resourceID == 0) {
-                // Failed to convert from resource name to ID. This can happen if a
-                // string resource has been renamed since the log entry was created.
-                return "";
+    // Sends all of the pending logs to the provider, in batches of at most maxBatchSize logs. A batch which could not be sent,
+    // because the logger went away or the provider process died, is put back in front of the
+    // pending logs and sent again with the next flush. Once a batch is in a database, its logs
+    // and the older ones are released from the log buffer.
+    private static void flushPendingLogs() {
+        while (true) {
+            ILogger currentLogger = logger.get();
+            FlushPolicy currentFlushPolicy = flushPolicy;
+            LogRingBuffer.Entry[] batch;
+            synchronized (pendingLogs) {
+                if (scheduledFlush != null) {
+                    scheduledFlush.cancel(false);
+                    scheduledFlush = null;
+                }
+                isFlushRequested = false;
+                if (currentLogger == null || pendingLogs.isEmpty()) {
+                    return;
+                }
+                batch = new LogRingBuffer.Entry[Math.min(pendingLogs.size(), currentFlushPolicy.maxBatchSize)];
+                for (int i = 0; i < batch.length; i++) {
+                    batch[i] = pendingLogs.pollFirst();
+                }
+            }
+            ContentValues[] values = new ContentValues[batch.length];
+            long logBufferSequence = -1;
+            for (int i = 0; i < batch.length; i++) {
+                values[i] = batch[i].values;
+                logBufferSequence = Math.max(logBufferSequence, batch[i].sequence);
+            }
+            if (writeToLogShard(currentLogger.getContext(), values) ||
+                    sendToProvider(currentLogger.getContext(), values)) {
+                LogRingBuffer currentLogBuffer = logBuffer;
+                if (currentLogBuffer != null && logBufferSequence >= 0) {
+                    currentLogBuffer.release(logBufferSequence);
+                }
+            } else {
+                synchronized (pendingLogs) {
+                    for (int i = batch.length - 1; i >= 0; i--) {
+                        pendingLogs.addFirst(batch[i]);
+                    }
+                    while (pendingLogs.size() > currentFlushPolicy.maxPendingLogs) {
+                        pendingLogs.pollFirst();
+                    }
+                    if (scheduledFlush == null) {
+                        scheduledFlush = executorService.schedule(MyLog::flushPendingLogs,
+                                currentFlushPolicy.flushDelayMillis, TimeUnit.MILLISECONDS);
+                    }
+                }
+                return;
             }
-            return context.getString(resourceID, formatArgs);
-        } catch (JSONException e) {
+        }
+    }
+
+    // bulkInsert() returns 0 rather than throwing if the provider process dies
+    private static boolean sendToProvider(Context context, ContentValues[] batch) {
+        try {
+            return context.getContentResolver()
+                    .bulkInsert(LoggingContentProvider.CONTENT_URI, batch) == batch.length;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to send logs to the provider: " + e);
+            return false;
+        }
+    }
+
+    // Returns false if there is no log shard or writing to it failed
+    private static boolean writeToLogShard(Context context, ContentValues[] batch) {
+        LogShard currentLogShard = logShard;
+        if (currentLogShard == null) {
+            return false;
+        }
+        try {
+            currentLogShard.insertLogs(batch);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Failed to write to the log shard: " + e);
+            return false;
+        }
+        // Let the provider import the status logs right away, if it is running, as they are
+        // displayed. This is a call to the system server, not to the provider process.
+        for (ContentValues values : batch) {
+            if (!values.getAsBoolean("is_diagnostic")) {
+                context.getContentResolver().notifyChange(LoggingContentProvider.LOG_SHARD_WRITTEN_URI, null);
+                break;
+            }
+        }
+        return true;
+    }
+
+    // The process name from /proc, as there is no API for it before API level 28
+    private static String getProcessName() {
+        byte[] buffer = new byte[256];
+        int length = 0;
+        try (FileInputStream in = new FileInputStream("/proc/self/cmdline")) {
+            int read;
+            while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) > 0) {
+                length += read;
+            }
+        } catch (IOException ignored) {
+        }
+        int end = 0;
+        while (end < length && buffer[end] != 0) {
+            end++;
+        }
+        return end > 0 ? new String(buffer, 0, end) : "main";
+    }
+
+    public static String getStatusLogMessageForDisplay(byte[] payload, Context context) {
+        LogPayload.Status status = LogPayload.decodeStatus(payload);
+        if (status == null) {
+            return "";
+        }
+        int resourceID = StringResourceCache.getId(context, status.getStringResourceName());
+        if (resourceID == 0) {
+            // Failed to convert from resource name to ID. This can happen if a
+            // string resource has been renamed since the log entry was created.
             return "";
         }
+        return context.getString(resourceID, status.getFormatArgs());
+    }
+
+    public static String getDiagnosticLogMessageForDisplay(byte[] payload) {
+        LogPayload.Diagnostic diagnostic = LogPayload.decodeDiagnostic(payload);
+        return diagnostic == null ? "" : diagnostic.getMessageForDisplay();
     }
 }
\ No newline at end of file
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.log;
+
+import android.content.Context;
+import android.content.res.Resources;
+
+import androidx.annotation.StringRes;
+
+import com.psiphon3.R;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Process wide cache of the string resource lookups of the status logs. Status logs are stored
+// with the name of their string resource, since resource ids can change between app versions,
+// so every status log written looks up a name and every status log rendered or exported looks
+// up an id. Resources.getIdentifier() in particular is slow. Resource ids and names don't change
+// while the process runs, so both directions are cached, including the names which no longer
+// resolve to an id.
+public class StringResourceCache {
+    // The string resources logged as status logs, looked up ahead of the first status log
+    private static final int[] STATUS_LOG_STRING_IDS = {
+            R.string.client_version,
+            R.string.http_proxy_port_in_use,
+            R.string.http_proxy_running,
+            R.string.individual_app_excluded,
+            R.string.individual_app_included,
+            R.string.no_apps_excluded,
+            R.string.socks_port_in_use,
+            R.string.socks_running,
+            R.string.start_tunnel_failed,
+            R.string.starting_tunnel,
+            R.string.stopped_tunnel,
+            R.string.stopping_tunnel,
+            R.string.tunnel_connected,
+            R.string.tunnel_connecting,
+            R.string.tunnel_whole_device_exception,
+            R.string.untunneled_address,
+            R.string.upstream_proxy_error,
+            R.string.vpn_exclusions_conflict,
+            R.string.vpn_service_revoked,
+            R.string.vpn_service_running,
+            R.string.waiting_for_network_connectivity,
+    };
+
+    private static final ConcurrentHashMap<Integer, String> namesById = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Integer> idsByName = new ConcurrentHashMap<>();
+    private static final AtomicLong hitCount = new AtomicLong();
+    private static final AtomicLong missCount = new AtomicLong();
+
+    // Looks up the status log string resources, to be called off the main thread
+    static void warmUp(Context context) {
+        Resources resources = context.getResources();
+        for (int resId : STATUS_LOG_STRING_IDS) {
+            if (!namesById.containsKey(resId)) {
+                put(resId, resources.getResourceName(resId));
+            }
+        }
+    }
+
+    // Same as Resources.getResourceName()
+    public static String getName(Context context, @StringRes int resId) {
+        String name = namesById.get(resId);
+        if (name != null) {
+            hitCount.incrementAndGet();
+            return name;
+        }
+        missCount.incrementAndGet();
+        name = context.getResources().getResourceName(resId);
+        put(resId, name);
+        return name;
+    }
+
+    // Same as Resources.getIdentifier(name, null, null), 0 if the name doesn't resolve
+    public static int getId(Context context, String name) {
+        Integer resId = idsByName.get(name);
+        if (resId != null) {
+            hitCount.incrementAndGet();
+            return resId;
+        }
+        missCount.incrementAndGet();
+        resId = context.getResources().getIdentifier(name, null, null);
+        if (resId == 0) {
+            idsByName.put(name, 0);
+        } else {
+            put(resId, name);
+        }
+        return resId;
+    }
+
+    public static long getHitCount() {
+        return hitCount.get();
+    }
+
+    public static long getMissCount() {
+        return missCount.get();
+    }
+
+    private static void put(int resId, String name) {
+        namesById.put(resId, name);
+        idsByName.put(name, resId);
+    }
+}
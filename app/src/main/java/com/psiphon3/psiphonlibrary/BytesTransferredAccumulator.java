@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Lock free accumulator of bytes sent and received, updated directly from the tunnel core
+// callback threads and periodically harvested into the data transfer stats.
+//
+// LongAdder is only available from API 24, so this is a minimal version of it: the counts are
+// striped over a few cells selected by thread id, so that concurrent callback threads rarely
+// contend on the same cell, and the cells are padded apart to avoid false sharing.
+class BytesTransferredAccumulator {
+    private static final int STRIPES = 4;
+    // 64 bytes between cells, the cache line size of the devices we run on
+    private static final int CELL_PADDING = 8;
+    private static final int SENT = 0;
+    private static final int RECEIVED = 1;
+
+    private final AtomicLongArray m_cells = new AtomicLongArray(STRIPES * CELL_PADDING);
+
+    void add(long bytesSent, long bytesReceived) {
+        int cell = (int) (Thread.currentThread().getId() & (STRIPES - 1)) * CELL_PADDING;
+        if (bytesSent != 0) {
+            m_cells.addAndGet(cell + SENT, bytesSent);
+        }
+        if (bytesReceived != 0) {
+            m_cells.addAndGet(cell + RECEIVED, bytesReceived);
+        }
+    }
+
+    // Returns {sent, received} accumulated since the previous harvest and resets the counts.
+    // Bytes added while harvesting are either included or left for the next harvest.
+    long[] harvest() {
+        long bytesSent = 0;
+        long bytesReceived = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            bytesSent += m_cells.getAndSet(i * CELL_PADDING + SENT, 0);
+            bytesReceived += m_cells.getAndSet(i * CELL_PADDING + RECEIVED, 0);
+        }
+        return new long[]{bytesSent, bytesReceived};
+    }
+}
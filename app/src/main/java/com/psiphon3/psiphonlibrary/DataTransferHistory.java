@@ -0,0 +1,510 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import com.psiphon3.log.MyLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Persistent traffic history that survives service restarts.
+//
+// The bytes transferred are rolled up into per-minute, per-hour and per-day tiers and a record
+// is appended to the tier's file whenever one of its periods ends. The partial periods are also
+// written hourly and when the session stops, so that a killed service loses little of them,
+// and are merged with the rest of their period when read and when the file is trimmed.
+// A session journal records the start, connected time, bytes and reconnects of each tunnel
+// session as checkpoints, the newest checkpoint of a session wins.
+//
+// All files are append only sequences of fixed width records, so readers in other processes
+// can safely read all the complete records at any time. Retention is bounded by trimming a file
+// to its newest records, or periods, once it has grown to twice the limit.
+//
+// Periods are aligned to the local time zone, so that days start at local midnight. The files
+// are paged by start time, so start times never go back even if the wall clock does: while the
+// clock is behind the newest period or session written, bytes keep accumulating in that period
+// and new sessions start right after that session.
+public class DataTransferHistory {
+    public enum Tier {
+        MINUTE("minutes", 60 * 1000L, 7 * 24 * 60),
+        HOUR("hours", 60 * 60 * 1000L, 90 * 24),
+        DAY("days", 24 * 60 * 60 * 1000L, 3 * 366);
+
+        private final String fileName;
+        final long periodMillis;
+        private final int maxRecords;
+
+        Tier(String fileName, long periodMillis, int maxRecords) {
+            this.fileName = fileName;
+            this.periodMillis = periodMillis;
+            this.maxRecords = maxRecords;
+        }
+    }
+
+    public static class Record {
+        // Start of the period, in milliseconds since the epoch, aligned to local time
+        public final long startTime;
+        public final long bytesSent;
+        public final long bytesReceived;
+
+        Record(long startTime, long bytesSent, long bytesReceived) {
+            this.startTime = startTime;
+            this.bytesSent = bytesSent;
+            this.bytesReceived = bytesReceived;
+        }
+    }
+
+    public static class Session {
+        public final long startTime;
+        public final long lastUpdateTime;
+        public final long connectedMillis;
+        public final long bytesSent;
+        public final long bytesReceived;
+        public final int reconnects;
+        // False if the service stopped without ending the session
+        public final boolean isEnded;
+
+        Session(long startTime, long lastUpdateTime, long connectedMillis, long bytesSent,
+                long bytesReceived, int reconnects, boolean isEnded) {
+            this.startTime = startTime;
+            this.lastUpdateTime = lastUpdateTime;
+            this.connectedMillis = connectedMillis;
+            this.bytesSent = bytesSent;
+            this.bytesReceived = bytesReceived;
+            this.reconnects = reconnects;
+            this.isEnded = isEnded;
+        }
+    }
+
+    private static final String DIRECTORY_NAME = "data_transfer_history";
+    private static final String SESSIONS_FILE_NAME = "sessions";
+    private static final int MAX_SESSION_RECORDS = 2000;
+
+    // startTime, bytesSent, bytesReceived
+    private static final int RECORD_SIZE = 3 * 8;
+    // startTime, lastUpdateTime, connectedMillis, bytesSent, bytesReceived, connectCount, isEnded
+    private static final int SESSION_RECORD_SIZE = 5 * 8 + 2 * 4;
+    // Number of records read from disk at once when paging
+    private static final int READ_CHUNK_RECORDS = 64;
+
+    private static DataTransferHistory m_dataTransferHistory;
+
+    public static synchronized DataTransferHistory getInstance(Context context) {
+        if (m_dataTransferHistory == null) {
+            m_dataTransferHistory = new DataTransferHistory(context.getApplicationContext());
+        }
+        return m_dataTransferHistory;
+    }
+
+    private final File m_directory;
+    // All file writes are done in order off the caller's thread
+    private final ExecutorService m_writeExecutor = Executors.newSingleThreadExecutor();
+
+    // Tier accumulators, indexed by Tier ordinal
+    private final long[] m_periodStartTimes = new long[Tier.values().length];
+    private final long[] m_periodBytesSent = new long[Tier.values().length];
+    private final long[] m_periodBytesReceived = new long[Tier.values().length];
+    // Start of the newest period written for each tier, records are never written out of order
+    private final long[] m_lastWrittenStartTimes = new long[Tier.values().length];
+
+    // Current local day, looked up in the calendar only when the time leaves it
+    private long m_dayStartTime;
+    private long m_nextDayStartTime;
+    private long m_dayZoneOffset;
+
+    // Start of the newest session written
+    private long m_lastSessionStartTime;
+
+    private boolean m_isSessionActive = false;
+    private long m_sessionStartTime;
+    private long m_sessionConnectedMillis;
+    // elapsedRealtime when the tunnel connected, 0 when not connected
+    private long m_sessionConnectedSince;
+    private long m_sessionBytesSent;
+    private long m_sessionBytesReceived;
+    private int m_sessionConnectCount;
+
+    private DataTransferHistory(Context context) {
+        m_directory = getDirectory(context);
+        for (Tier tier : Tier.values()) {
+            m_lastWrittenStartTimes[tier.ordinal()] =
+                    readLastStartTime(new File(m_directory, tier.fileName), RECORD_SIZE);
+        }
+        m_lastSessionStartTime = readLastStartTime(new File(m_directory, SESSIONS_FILE_NAME), SESSION_RECORD_SIZE);
+    }
+
+    // Returns the start time of the last complete record of the file, 0 if there is none
+    private static long readLastStartTime(File file, int recordSize) {
+        if (!file.exists()) {
+            return 0;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long count = raf.length() / recordSize;
+            if (count == 0) {
+                return 0;
+            }
+            raf.seek((count - 1) * recordSize);
+            return raf.readLong();
+        } catch (IOException e) {
+            MyLog.w("DataTransferHistory: failed to read " + file.getName() + ": " + e);
+            return 0;
+        }
+    }
+
+    private static File getDirectory(Context context) {
+        return new File(context.getFilesDir(), DIRECTORY_NAME);
+    }
+
+    public synchronized void startSession() {
+        if (m_isSessionActive) {
+            stopSession();
+        }
+        m_isSessionActive = true;
+        m_sessionStartTime = Math.max(System.currentTimeMillis(), m_lastSessionStartTime + 1);
+        m_lastSessionStartTime = m_sessionStartTime;
+        m_sessionConnectedMillis = 0;
+        m_sessionConnectedSince = 0;
+        m_sessionBytesSent = 0;
+        m_sessionBytesReceived = 0;
+        m_sessionConnectCount = 0;
+        writeSessionCheckpoint(false);
+    }
+
+    public synchronized void onConnected() {
+        if (!m_isSessionActive || m_sessionConnectedSince != 0) {
+            return;
+        }
+        m_sessionConnectedSince = SystemClock.elapsedRealtime();
+        m_sessionConnectCount++;
+        writeSessionCheckpoint(false);
+    }
+
+    public synchronized void onDisconnected() {
+        if (!m_isSessionActive || m_sessionConnectedSince == 0) {
+            return;
+        }
+        m_sessionConnectedMillis += SystemClock.elapsedRealtime() - m_sessionConnectedSince;
+        m_sessionConnectedSince = 0;
+        writeSessionCheckpoint(false);
+    }
+
+    public synchronized void addBytes(long bytesSent, long bytesReceived) {
+        if (bytesSent == 0 && bytesReceived == 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long zoneOffset = TimeZone.getDefault().getOffset(now);
+        boolean isHourEnded = false;
+        for (Tier tier : Tier.values()) {
+            int i = tier.ordinal();
+            long periodStartTime = Math.max(getPeriodStartTime(tier, now, zoneOffset),
+                    Math.max(m_periodStartTimes[i], m_lastWrittenStartTimes[i]));
+            if (periodStartTime != m_periodStartTimes[i]) {
+                writePeriod(tier);
+                m_periodStartTimes[i] = periodStartTime;
+                isHourEnded |= tier == Tier.HOUR;
+            }
+            m_periodBytesSent[i] += bytesSent;
+            m_periodBytesReceived[i] += bytesReceived;
+        }
+        if (m_isSessionActive) {
+            m_sessionBytesSent += bytesSent;
+            m_sessionBytesReceived += bytesReceived;
+        }
+        // Checkpoint hourly so that a killed service loses little of the partial periods and
+        // the session
+        if (isHourEnded) {
+            writePeriod(Tier.DAY);
+            if (m_isSessionActive) {
+                writeSessionCheckpoint(false);
+            }
+        }
+    }
+
+    // Days start at local midnight, which is looked up in the calendar as not all days are 24
+    // hours long, once per day or time zone change. The shorter periods are aligned to the
+    // current offset of the time zone.
+    private long getPeriodStartTime(Tier tier, long time, long zoneOffset) {
+        if (tier == Tier.DAY) {
+            if (time < m_dayStartTime || time >= m_nextDayStartTime || zoneOffset != m_dayZoneOffset) {
+                Calendar calendar = Calendar.getInstance();
+                calendar.setTimeInMillis(time);
+                calendar.set(Calendar.HOUR_OF_DAY, 0);
+                calendar.set(Calendar.MINUTE, 0);
+                calendar.set(Calendar.SECOND, 0);
+                calendar.set(Calendar.MILLISECOND, 0);
+                m_dayStartTime = calendar.getTimeInMillis();
+                calendar.add(Calendar.DAY_OF_MONTH, 1);
+                m_nextDayStartTime = calendar.getTimeInMillis();
+                m_dayZoneOffset = zoneOffset;
+            }
+            return m_dayStartTime;
+        }
+        return time - (time + zoneOffset) % tier.periodMillis;
+    }
+
+    // Writes the partial periods and the final session checkpoint. The partial periods are
+    // merged with the rest of their periods when read.
+    public synchronized void stopSession() {
+        for (Tier tier : Tier.values()) {
+            writePeriod(tier);
+        }
+        if (m_isSessionActive) {
+            if (m_sessionConnectedSince != 0) {
+                m_sessionConnectedMillis += SystemClock.elapsedRealtime() - m_sessionConnectedSince;
+                m_sessionConnectedSince = 0;
+            }
+            writeSessionCheckpoint(true);
+            m_isSessionActive = false;
+        }
+    }
+
+    private void writePeriod(Tier tier) {
+        int i = tier.ordinal();
+        if (m_periodBytesSent[i] == 0 && m_periodBytesReceived[i] == 0) {
+            return;
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.putLong(m_periodStartTimes[i]);
+        record.putLong(m_periodBytesSent[i]);
+        record.putLong(m_periodBytesReceived[i]);
+        m_lastWrittenStartTimes[i] = m_periodStartTimes[i];
+        m_periodBytesSent[i] = 0;
+        m_periodBytesReceived[i] = 0;
+        append(new File(m_directory, tier.fileName), record.array(), RECORD_SIZE, tier.maxRecords, true);
+    }
+
+    private void writeSessionCheckpoint(boolean isEnded) {
+        long connectedMillis = m_sessionConnectedMillis;
+        if (m_sessionConnectedSince != 0) {
+            connectedMillis += SystemClock.elapsedRealtime() - m_sessionConnectedSince;
+        }
+        ByteBuffer record = ByteBuffer.allocate(SESSION_RECORD_SIZE);
+        record.putLong(m_sessionStartTime);
+        record.putLong(System.currentTimeMillis());
+        record.putLong(connectedMillis);
+        record.putLong(m_sessionBytesSent);
+        record.putLong(m_sessionBytesReceived);
+        record.putInt(m_sessionConnectCount);
+        record.putInt(isEnded ? 1 : 0);
+        append(new File(m_directory, SESSIONS_FILE_NAME), record.array(), SESSION_RECORD_SIZE, MAX_SESSION_RECORDS, false);
+    }
+
+    private void append(File file, byte[] record, int recordSize, int maxRecords, boolean isPeriodFile) {
+        m_writeExecutor.execute(() -> {
+            try {
+                if (!m_directory.exists() && !m_directory.mkdirs()) {
+                    throw new IOException("failed to create " + m_directory);
+                }
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    // Drop a partial record left by an interrupted write
+                    long length = raf.length();
+                    length -= length % recordSize;
+                    raf.setLength(length);
+                    raf.seek(length);
+                    raf.write(record);
+                    length += recordSize;
+                    if (length >= 2L * maxRecords * recordSize) {
+                        trim(file, raf, length, recordSize, maxRecords, isPeriodFile);
+                    }
+                }
+            } catch (IOException e) {
+                MyLog.w("DataTransferHistory: failed to write " + file.getName() + ": " + e);
+            }
+        });
+    }
+
+    // Replaces the file with a copy holding only its newest maxRecords records, or of a period
+    // file its newest maxRecords periods with their partial records merged. The copy is renamed
+    // over the file so that readers never see a partially trimmed file.
+    private static void trim(File file, RandomAccessFile raf, long length, int recordSize, int maxRecords,
+                             boolean isPeriodFile) throws IOException {
+        byte[] newest;
+        if (isPeriodFile) {
+            newest = readNewestPeriods(raf, length, maxRecords);
+        } else {
+            newest = new byte[maxRecords * recordSize];
+            raf.seek(length - newest.length);
+            raf.readFully(newest);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+            out.setLength(0);
+            out.write(newest);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("failed to rename " + tmp);
+        }
+    }
+
+    // Reads the whole period file and merges the records of each period, newest first, into
+    // the end of the buffer read, returns the newest maxRecords merged records
+    private static byte[] readNewestPeriods(RandomAccessFile raf, long length, int maxRecords) throws IOException {
+        byte[] records = new byte[(int) length];
+        raf.seek(0);
+        raf.readFully(records);
+        ByteBuffer buffer = ByteBuffer.wrap(records);
+        // The merged records end up at or after the records still to be read
+        int merged = records.length;
+        int count = 0;
+        for (int position = records.length - RECORD_SIZE; position >= 0; position -= RECORD_SIZE) {
+            long startTime = buffer.getLong(position);
+            long bytesSent = buffer.getLong(position + 8);
+            long bytesReceived = buffer.getLong(position + 16);
+            if (count > 0 && buffer.getLong(merged) == startTime) {
+                buffer.putLong(merged + 8, buffer.getLong(merged + 8) + bytesSent);
+                buffer.putLong(merged + 16, buffer.getLong(merged + 16) + bytesReceived);
+                continue;
+            }
+            if (count == maxRecords) {
+                break;
+            }
+            merged -= RECORD_SIZE;
+            buffer.putLong(merged, startTime);
+            buffer.putLong(merged + 8, bytesSent);
+            buffer.putLong(merged + 16, bytesReceived);
+            count++;
+        }
+        return Arrays.copyOfRange(records, merged, records.length);
+    }
+
+    // Returns up to limit records of the tier that started before beforeTime, newest first.
+    // Page through the history by passing Long.MAX_VALUE for the first page and the start time
+    // of the last record returned for the following pages. The history isn't shown in the UI
+    // yet, this is the API a view of it reads from.
+    public static List<Record> getRecords(Context context, Tier tier, long beforeTime, int limit) {
+        List<Record> records = new ArrayList<>();
+        File file = new File(getDirectory(context), tier.fileName);
+        if (limit <= 0 || !file.exists()) {
+            return records;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long count = raf.length() / RECORD_SIZE;
+            // Records are written in start time order, find the first one at or after beforeTime
+            long low = 0;
+            long high = count;
+            while (low < high) {
+                long mid = (low + high) >>> 1;
+                raf.seek(mid * RECORD_SIZE);
+                if (raf.readLong() < beforeTime) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            byte[] chunk = new byte[READ_CHUNK_RECORDS * RECORD_SIZE];
+            long end = low;
+            Record pending = null;
+            while (end > 0) {
+                long start = Math.max(0, end - READ_CHUNK_RECORDS);
+                int chunkRecords = (int) (end - start);
+                raf.seek(start * RECORD_SIZE);
+                raf.readFully(chunk, 0, chunkRecords * RECORD_SIZE);
+                ByteBuffer buffer = ByteBuffer.wrap(chunk);
+                for (int i = chunkRecords - 1; i >= 0; i--) {
+                    buffer.position(i * RECORD_SIZE);
+                    long startTime = buffer.getLong();
+                    long bytesSent = buffer.getLong();
+                    long bytesReceived = buffer.getLong();
+                    // Partial periods written hourly or when a session stopped are merged together
+                    if (pending != null && pending.startTime == startTime) {
+                        pending = new Record(startTime, pending.bytesSent + bytesSent,
+                                pending.bytesReceived + bytesReceived);
+                        continue;
+                    }
+                    if (pending != null) {
+                        records.add(pending);
+                        if (records.size() == limit) {
+                            return records;
+                        }
+                    }
+                    pending = new Record(startTime, bytesSent, bytesReceived);
+                }
+                end = start;
+            }
+            if (pending != null) {
+                records.add(pending);
+            }
+        } catch (IOException e) {
+            MyLog.w("DataTransferHistory: failed to read " + file.getName() + ": " + e);
+        }
+        return records;
+    }
+
+    // Returns up to limit sessions that started before beforeStartTime, newest first, paged
+    // the same way as getRecords.
+    public static List<Session> getSessions(Context context, long beforeStartTime, int limit) {
+        List<Session> sessions = new ArrayList<>();
+        File file = new File(getDirectory(context), SESSIONS_FILE_NAME);
+        if (limit <= 0 || !file.exists()) {
+            return sessions;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] chunk = new byte[READ_CHUNK_RECORDS * SESSION_RECORD_SIZE];
+            long end = raf.length() / SESSION_RECORD_SIZE;
+            // Checkpoints of a session are contiguous, the newest one comes first when reading
+            // backwards
+            long lastStartTime = Long.MIN_VALUE;
+            while (end > 0) {
+                long start = Math.max(0, end - READ_CHUNK_RECORDS);
+                int chunkRecords = (int) (end - start);
+                raf.seek(start * SESSION_RECORD_SIZE);
+                raf.readFully(chunk, 0, chunkRecords * SESSION_RECORD_SIZE);
+                ByteBuffer buffer = ByteBuffer.wrap(chunk);
+                for (int i = chunkRecords - 1; i >= 0; i--) {
+                    buffer.position(i * SESSION_RECORD_SIZE);
+                    long startTime = buffer.getLong();
+                    if (startTime >= beforeStartTime || startTime == lastStartTime) {
+                        continue;
+                    }
+                    lastStartTime = startTime;
+                    long lastUpdateTime = buffer.getLong();
+                    long connectedMillis = buffer.getLong();
+                    long bytesSent = buffer.getLong();
+                    long bytesReceived = buffer.getLong();
+                    int connectCount = buffer.getInt();
+                    boolean isEnded = buffer.getInt() != 0;
+                    sessions.add(new Session(startTime, lastUpdateTime, connectedMillis, bytesSent,
+                            bytesReceived, Math.max(0, connectCount - 1), isEnded));
+                    if (sessions.size() == limit) {
+                        return sessions;
+                    }
+                }
+                end = start;
+            }
+        } catch (IOException e) {
+            MyLog.w("DataTransferHistory: failed to read " + file.getName() + ": " + e);
+        }
+        return sessions;
+    }
+}
@@ -19,10 +19,18 @@
 
 package com.psiphon3.psiphonlibrary;
 
-import android.os.Parcel;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Parcelable;
+import android.os.SharedMemory;
 import android.os.SystemClock;
-import java.util.ArrayList;
+import android.system.ErrnoException;
+
+import androidx.annotation.RequiresApi;
+
+import com.psiphon3.log.MyLog;
+
+import java.util.Arrays;
 
 public class DataTransferStats {
     // Singleton pattern
@@ -51,52 +59,163 @@ public class DataTransferStats {
     public static abstract class DataTransferStatsBase {
         private static final long SLOW_BUCKET_PERIOD_MILLISECONDS = 5 * 60 * 1000;
         private static final long FAST_BUCKET_PERIOD_MILLISECONDS = 1000;
-        private static final int MAX_BUCKETS = 24 * 60 / 5;
-
-        protected static class Bucket implements Parcelable {
-            public long m_bytesSent = 0;
-            public long m_bytesReceived = 0;
+        protected static final int MAX_BUCKETS = 24 * 60 / 5;
+        // Number of buckets in each of the series returned to the UI
+        public static final int SERIES_LENGTH = MAX_BUCKETS;
+
+        // Fixed capacity ring of sent/received byte counts. A bucket lives in the slot
+        // (period number % MAX_BUCKETS) where the period number is elapsedRealtime / period,
+        // so advancing only needs to clear the slots of the periods elapsed since the last
+        // update and never costs more than one pass over the arrays.
+        // Every slot is also stamped with the stats version it was last modified in, which
+        // lets the service send a client only the slots that changed since its last update.
+        protected class Buckets {
+            private final long m_period;
+            // Ring index in the shared memory region
+            private final int m_ring;
+            protected final long[] m_bytesSent = new long[MAX_BUCKETS];
+            protected final long[] m_bytesReceived = new long[MAX_BUCKETS];
+            private final long[] m_slotVersions = new long[MAX_BUCKETS];
+            // Period number of the newest bucket
+            protected long m_lastPeriod;
+            // Period number of the newest bucket written to the shared memory region, -1 if
+            // the whole ring has to be written
+            private long m_mirroredPeriod = -1;
+
+            Buckets(long period, int ring) {
+                m_period = period;
+                m_ring = ring;
+            }
 
-            protected Bucket() {
+            void reset(long now) {
+                Arrays.fill(m_bytesSent, 0);
+                Arrays.fill(m_bytesReceived, 0);
+                Arrays.fill(m_slotVersions, m_version);
+                m_lastPeriod = now / m_period;
+                m_mirroredPeriod = -1;
+            }
 
+            void advance(long now) {
+                advanceToPeriod(now / m_period);
             }
 
-            protected Bucket(Parcel in) {
-                m_bytesSent = in.readLong();
-                m_bytesReceived = in.readLong();
+            private void advanceToPeriod(long currentPeriod) {
+                long elapsed = currentPeriod - m_lastPeriod;
+                if (elapsed <= 0) {
+                    return;
+                }
+                if (elapsed >= MAX_BUCKETS) {
+                    Arrays.fill(m_bytesSent, 0);
+                    Arrays.fill(m_bytesReceived, 0);
+                    Arrays.fill(m_slotVersions, m_version);
+                } else {
+                    for (long period = m_lastPeriod + 1; period <= currentPeriod; period++) {
+                        int index = indexOf(period);
+                        m_bytesSent[index] = 0;
+                        m_bytesReceived[index] = 0;
+                        m_slotVersions[index] = m_version;
+                    }
+                }
+                m_lastPeriod = currentPeriod;
             }
 
-            @Override
-            public int describeContents() {
-                return 0;
+            void add(long bytesSent, long bytesReceived) {
+                int index = indexOf(m_lastPeriod);
+                m_bytesSent[index] += bytesSent;
+                m_bytesReceived[index] += bytesReceived;
+                m_slotVersions[index] = m_version;
             }
 
-            @Override
-            public void writeToParcel(Parcel dest, int flags) {
-                dest.writeLong(m_bytesSent);
-                dest.writeLong(m_bytesReceived);
+            // Writes the slots modified after sinceVersion, all of them if sinceVersion is 0
+            void writeChanges(Bundle data, long sinceVersion,
+                              String indicesKey, String sentKey, String receivedKey, String lastPeriodKey) {
+                int count = 0;
+                for (int i = 0; i < MAX_BUCKETS; i++) {
+                    if (m_slotVersions[i] > sinceVersion) {
+                        count++;
+                    }
+                }
+                int[] indices = new int[count];
+                long[] bytesSent = new long[count];
+                long[] bytesReceived = new long[count];
+                for (int i = 0, j = 0; i < MAX_BUCKETS && j < count; i++) {
+                    if (m_slotVersions[i] > sinceVersion) {
+                        indices[j] = i;
+                        bytesSent[j] = m_bytesSent[i];
+                        bytesReceived[j] = m_bytesReceived[i];
+                        j++;
+                    }
+                }
+                data.putIntArray(indicesKey, indices);
+                data.putLongArray(sentKey, bytesSent);
+                data.putLongArray(receivedKey, bytesReceived);
+                data.putLong(lastPeriodKey, m_lastPeriod);
             }
 
-            public static final Creator<Bucket> CREATOR = new Creator<Bucket>() {
-                @Override
-                public Bucket createFromParcel(Parcel in) {
-                    return new Bucket(in);
+            void applyChanges(int[] indices, long[] bytesSent, long[] bytesReceived, long lastPeriod) {
+                if (indices == null || bytesSent == null || bytesReceived == null ||
+                        bytesSent.length != indices.length || bytesReceived.length != indices.length) {
+                    return;
                 }
+                // Catch up with the service first, the slots it cleared on the way are part of
+                // the changes anyway
+                advanceToPeriod(lastPeriod);
+                for (int i = 0; i < indices.length; i++) {
+                    int index = indices[i];
+                    if (index >= 0 && index < MAX_BUCKETS) {
+                        m_bytesSent[index] = bytesSent[i];
+                        m_bytesReceived[index] = bytesReceived[i];
+                    }
+                }
+            }
 
-                @Override
-                public Bucket[] newArray(int size) {
-                    return new Bucket[size];
+            // Writes the buckets modified since the last call to the shared memory region. Bytes
+            // are only ever added to the newest bucket, so these are the buckets from the
+            // previously mirrored one up to the newest.
+            @RequiresApi(api = Build.VERSION_CODES.TIRAMISU)
+            void mirror(DataTransferStatsSharedMemory sharedMemory) {
+                long firstPeriod = m_mirroredPeriod;
+                if (firstPeriod < 0 || m_lastPeriod - firstPeriod >= MAX_BUCKETS) {
+                    firstPeriod = m_lastPeriod - MAX_BUCKETS + 1;
+                }
+                for (long period = firstPeriod; period <= m_lastPeriod; period++) {
+                    int index = indexOf(period);
+                    sharedMemory.writeBucket(m_ring, index, m_bytesSent[index], m_bytesReceived[index]);
                 }
-            };
+                sharedMemory.writeLastPeriod(m_ring, m_lastPeriod);
+                m_mirroredPeriod = m_lastPeriod;
+            }
+
+            @RequiresApi(api = Build.VERSION_CODES.TIRAMISU)
+            void copyFrom(DataTransferStatsSharedMemory sharedMemory) {
+                sharedMemory.copyBuckets(m_ring, m_bytesSent, m_bytesReceived);
+                m_lastPeriod = sharedMemory.getLastPeriod(m_ring);
+            }
+
+            // Copies one of the rings into a series ordered from the oldest to the newest bucket
+            void copySeries(long[] ring, long[] series) {
+                int oldest = indexOf(m_lastPeriod + 1);
+                int firstPart = MAX_BUCKETS - oldest;
+                System.arraycopy(ring, oldest, series, 0, firstPart);
+                System.arraycopy(ring, 0, series, firstPart, oldest);
+            }
+
+            int indexOf(long period) {
+                // Period numbers below zero only show up when mirroring a ring whose newest
+                // bucket is younger than MAX_BUCKETS periods since boot
+                return (int) (((period % MAX_BUCKETS) + MAX_BUCKETS) % MAX_BUCKETS);
+            }
         }
 
         protected long m_connectedTime;
         protected long m_totalBytesSent;
         protected long m_totalBytesReceived;
-        protected ArrayList<Bucket> m_slowBuckets;
-        protected long m_slowBucketsLastStartTime;
-        protected ArrayList<Bucket> m_fastBuckets;
-        protected long m_fastBucketsLastStartTime;
+        // Starts at 1 so that a client that has not received anything yet (version 0) gets all slots
+        protected long m_version = 1;
+        protected final Buckets m_slowBuckets = new Buckets(SLOW_BUCKET_PERIOD_MILLISECONDS,
+                DataTransferStatsSharedMemory.SLOW_BUCKETS);
+        protected final Buckets m_fastBuckets = new Buckets(FAST_BUCKET_PERIOD_MILLISECONDS,
+                DataTransferStatsSharedMemory.FAST_BUCKETS);
 
         private DataTransferStatsBase() {
             m_totalBytesSent = 0;
@@ -112,141 +231,227 @@ public class DataTransferStats {
 
         protected void resetBytesTransferred() {
             long now = SystemClock.elapsedRealtime();
-            m_slowBucketsLastStartTime = bucketStartTime(now, SLOW_BUCKET_PERIOD_MILLISECONDS);
-            m_slowBuckets = newBuckets();
-            m_fastBucketsLastStartTime = bucketStartTime(now, FAST_BUCKET_PERIOD_MILLISECONDS);
-            m_fastBuckets = newBuckets();
+            m_slowBuckets.reset(now);
+            m_fastBuckets.reset(now);
         }
 
-        private long bucketStartTime(long now, long period) {
-            return period * (now / period);
+        protected void manageBuckets() {
+            long now = SystemClock.elapsedRealtime();
+            m_slowBuckets.advance(now);
+            m_fastBuckets.advance(now);
         }
+    }
+
+    public static class DataTransferStatsForService extends DataTransferStatsBase {
+        // Region the stats are mirrored to for the clients that can map it, null if not created
+        private DataTransferStatsSharedMemory m_sharedMemory;
+
+        private DataTransferStatsForService() {
 
-        private ArrayList<Bucket> newBuckets() {
-            ArrayList<Bucket> buckets = new ArrayList<>();
-            for (int i = 0; i < MAX_BUCKETS; i++) {
-                buckets.add(new Bucket());
-            }
-            return buckets;
         }
 
-        private void shiftBuckets(long diff, long period, ArrayList<Bucket> buckets) {
-            for (int i = 0; i < diff / period + 1; i++) {
-                buckets.add(buckets.size(), new Bucket());
-                if (buckets.size() >= MAX_BUCKETS) {
-                    buckets.remove(0);
-                }
+        // Creates the shared memory region the stats are mirrored to from now on
+        @RequiresApi(api = Build.VERSION_CODES.TIRAMISU)
+        synchronized void createSharedMemory() {
+            closeSharedMemory();
+            try {
+                m_sharedMemory = DataTransferStatsSharedMemory.create(MAX_BUCKETS);
+            } catch (ErrnoException e) {
+                MyLog.w("DataTransferStats: failed to create shared memory: " + e);
+                return;
             }
+            m_slowBuckets.m_mirroredPeriod = -1;
+            m_fastBuckets.m_mirroredPeriod = -1;
+            publish();
         }
 
-        protected void manageBuckets() {
-            long now = SystemClock.elapsedRealtime();
-
-            long diff = now - m_slowBucketsLastStartTime;
-            if (diff >= SLOW_BUCKET_PERIOD_MILLISECONDS) {
-                shiftBuckets(diff, SLOW_BUCKET_PERIOD_MILLISECONDS, m_slowBuckets);
-                m_slowBucketsLastStartTime = bucketStartTime(now, SLOW_BUCKET_PERIOD_MILLISECONDS);
+        // Returns the region to pass to the clients, or null if there is none
+        synchronized Parcelable getSharedMemory() {
+            if (m_sharedMemory == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.TIRAMISU) {
+                return null;
             }
+            return m_sharedMemory.getSharedMemory();
+        }
 
-            diff = now - m_fastBucketsLastStartTime;
-            if (diff >= FAST_BUCKET_PERIOD_MILLISECONDS) {
-                shiftBuckets(diff, FAST_BUCKET_PERIOD_MILLISECONDS, m_fastBuckets);
-                m_fastBucketsLastStartTime = bucketStartTime(now, FAST_BUCKET_PERIOD_MILLISECONDS);
+        synchronized void closeSharedMemory() {
+            if (m_sharedMemory != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                m_sharedMemory.close();
             }
+            m_sharedMemory = null;
         }
-    }
-
-    public static class DataTransferStatsForService extends DataTransferStatsBase {
-        private DataTransferStatsForService() {
 
+        @Override
+        public synchronized void stop() {
+            super.stop();
+            publish();
         }
 
         public synchronized void startSession() {
             resetBytesTransferred();
+            publish();
         }
 
         public synchronized void startConnected() {
             m_connectedTime = SystemClock.elapsedRealtime();
+            publish();
         }
 
-        public synchronized void addBytesSent(long bytes) {
-            m_totalBytesSent += bytes;
-
-            manageBuckets();
-            addSentToBuckets(bytes);
-        }
-
-        public synchronized void addBytesReceived(long bytes) {
-            m_totalBytesReceived += bytes;
+        public synchronized void addBytesTransferred(long bytesSent, long bytesReceived) {
+            m_totalBytesSent += bytesSent;
+            m_totalBytesReceived += bytesReceived;
 
             manageBuckets();
-            addReceivedToBuckets(bytes);
+            m_slowBuckets.add(bytesSent, bytesReceived);
+            m_fastBuckets.add(bytesSent, bytesReceived);
+            publish();
         }
 
-        private void addSentToBuckets(long bytes) {
-            m_slowBuckets.get(m_slowBuckets.size() - 1).m_bytesSent += bytes;
-            m_fastBuckets.get(m_fastBuckets.size() - 1).m_bytesSent += bytes;
+        // Mirrors the changes to the shared memory region, if there is one
+        private void publish() {
+            if (m_sharedMemory == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.TIRAMISU) {
+                return;
+            }
+            m_sharedMemory.beginWrite();
+            m_sharedMemory.writeTotals(m_connectedTime, m_totalBytesSent, m_totalBytesReceived);
+            m_slowBuckets.mirror(m_sharedMemory);
+            m_fastBuckets.mirror(m_sharedMemory);
+            m_sharedMemory.endWrite();
         }
 
-        private void addReceivedToBuckets(long bytes) {
-            m_slowBuckets.get(m_slowBuckets.size() - 1).m_bytesReceived += bytes;
-            m_fastBuckets.get(m_fastBuckets.size() - 1).m_bytesReceived += bytes;
+        // Writes the totals and the buckets changed since sinceVersion, which is the version
+        // returned by the previous call for the same client or 0 for a full snapshot.
+        // Returns the version the client is up to date with once it receives the bundle.
+        synchronized long writeToBundle(Bundle data, long sinceVersion) {
+            data.putLong(TunnelManager.DATA_TRANSFER_STATS_CONNECTED_TIME, m_connectedTime);
+            data.putLong(TunnelManager.DATA_TRANSFER_STATS_TOTAL_BYTES_SENT, m_totalBytesSent);
+            data.putLong(TunnelManager.DATA_TRANSFER_STATS_TOTAL_BYTES_RECEIVED, m_totalBytesReceived);
+            m_slowBuckets.writeChanges(data, sinceVersion,
+                    TunnelManager.DATA_TRANSFER_STATS_SLOW_BUCKETS_INDICES,
+                    TunnelManager.DATA_TRANSFER_STATS_SLOW_BUCKETS_SENT,
+                    TunnelManager.DATA_TRANSFER_STATS_SLOW_BUCKETS_RECEIVED,
+                    TunnelManager.DATA_TRANSFER_STATS_SLOW_BUCKETS_LAST_PERIOD);
+            m_fastBuckets.writeChanges(data, sinceVersion,
+                    TunnelManager.DATA_TRANSFER_STATS_FAST_BUCKETS_INDICES,
+                    TunnelManager.DATA_TRANSFER_STATS_FAST_BUCKETS_SENT,
+                    TunnelManager.DATA_TRANSFER_STATS_FAST_BUCKETS_RECEIVED,
+                    TunnelManager.DATA_TRANSFER_STATS_FAST_BUCKETS_LAST_PERIOD);
+            // Changes made from now on belong to the next version
+            return m_version++;
         }
     }
 
     public static class DataTransferStatsForUI extends DataTransferStatsBase {
+        // Read only mapping of the service's region, when attached the stats are sampled from
+        // it instead of relying on the service messages
+        private DataTransferStatsSharedMemory m_sharedMemory;
+        // Number of service clients in this process that attached the region
+        private int m_sharedMemoryAttachCount;
+
         private DataTransferStatsForUI() {
 
         }
 
-        private ArrayList<Long> getSentSeries(ArrayList<Bucket> buckets) {
-            ArrayList<Long> series = new ArrayList<>();
-            for (int i = 0; i < buckets.size(); i++) {
-                series.add(buckets.get(i).m_bytesSent);
+        // Maps the region received from the service. The mapping is shared by all the clients
+        // of this process, a region received while one is attached replaces it, as the service
+        // may have been restarted with a new region since.
+        @RequiresApi(api = Build.VERSION_CODES.TIRAMISU)
+        synchronized void attachSharedMemory(SharedMemory sharedMemory) throws ErrnoException {
+            DataTransferStatsSharedMemory mapping =
+                    DataTransferStatsSharedMemory.mapReadOnly(sharedMemory, MAX_BUCKETS);
+            if (m_sharedMemory != null) {
+                m_sharedMemory.close();
             }
-            return series;
+            m_sharedMemory = mapping;
+            m_sharedMemoryAttachCount++;
         }
 
-        private ArrayList<Long> getReceivedSeries(ArrayList<Bucket> buckets) {
-            ArrayList<Long> series = new ArrayList<>();
-            for (int i = 0; i < buckets.size(); i++) {
-                series.add(buckets.get(i).m_bytesReceived);
+        synchronized void detachSharedMemory() {
+            if (m_sharedMemoryAttachCount == 0 || --m_sharedMemoryAttachCount > 0) {
+                return;
+            }
+            if (m_sharedMemory != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                m_sharedMemory.close();
             }
-            return series;
+            m_sharedMemory = null;
+        }
+
+        private void sampleSharedMemory() {
+            if (m_sharedMemory == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.TIRAMISU) {
+                return;
+            }
+            if (!m_sharedMemory.read()) {
+                // The service kept updating the region, keep showing the previous sample
+                return;
+            }
+            m_connectedTime = m_sharedMemory.getConnectedTime();
+            m_totalBytesSent = m_sharedMemory.getTotalBytesSent();
+            m_totalBytesReceived = m_sharedMemory.getTotalBytesReceived();
+            m_slowBuckets.copyFrom(m_sharedMemory);
+            m_fastBuckets.copyFrom(m_sharedMemory);
+        }
+
+        synchronized void readFromBundle(Bundle data) {
+            m_connectedTime = data.getLong(TunnelManager.DATA_TRANSFER_STATS_CONNECTED_TIME);
+            m_totalBytesSent = data.getLong(TunnelManager.DATA_TRANSFER_STATS_TOTAL_BYTES_SENT);
+            m_totalBytesReceived = data.getLong(TunnelManager.DATA_TRANSFER_STATS_TOTAL_BYTES_RECEIVED);
+            m_slowBuckets.applyChanges(data.getIntArray(TunnelManager.DATA_TRANSFER_STATS_SLOW_BUCKETS_INDICES),
+                    data.getLongArray(TunnelManager.DATA_TRANSFER_STATS_SLOW_BUCKETS_SENT),
+                    data.getLongArray(TunnelManager.DATA_TRANSFER_STATS_SLOW_BUCKETS_RECEIVED),
+                    data.getLong(TunnelManager.DATA_TRANSFER_STATS_SLOW_BUCKETS_LAST_PERIOD));
+            m_fastBuckets.applyChanges(data.getIntArray(TunnelManager.DATA_TRANSFER_STATS_FAST_BUCKETS_INDICES),
+                    data.getLongArray(TunnelManager.DATA_TRANSFER_STATS_FAST_BUCKETS_SENT),
+                    data.getLongArray(TunnelManager.DATA_TRANSFER_STATS_FAST_BUCKETS_RECEIVED),
+                    data.getLong(TunnelManager.DATA_TRANSFER_STATS_FAST_BUCKETS_LAST_PERIOD));
         }
 
         public synchronized long getElapsedTime() {
+            sampleSharedMemory();
             long now = SystemClock.elapsedRealtime();
 
             return now - this.m_connectedTime;
         }
 
         public synchronized long getTotalBytesSent() {
+            sampleSharedMemory();
             return this.m_totalBytesSent;
         }
 
         public synchronized long getTotalBytesReceived() {
+            sampleSharedMemory();
             return this.m_totalBytesReceived;
         }
 
-        public synchronized ArrayList<Long> getSlowSentSeries() {
+        // The series getters fill a caller provided array of SERIES_LENGTH buckets, ordered from
+        // the oldest to the newest, so that callers can reuse their arrays on every update. They
+        // return the period number of the newest bucket, which only increases, so that callers
+        // can tell by how many buckets the series moved since their previous call.
+
+        public synchronized long getSlowSentSeries(long[] series) {
+            sampleSharedMemory();
             manageBuckets();
-            return getSentSeries(this.m_slowBuckets);
+            m_slowBuckets.copySeries(m_slowBuckets.m_bytesSent, series);
+            return m_slowBuckets.m_lastPeriod;
         }
 
-        public synchronized ArrayList<Long> getSlowReceivedSeries() {
+        public synchronized long getSlowReceivedSeries(long[] series) {
+            sampleSharedMemory();
             manageBuckets();
-            return getReceivedSeries(this.m_slowBuckets);
+            m_slowBuckets.copySeries(m_slowBuckets.m_bytesReceived, series);
+            return m_slowBuckets.m_lastPeriod;
         }
 
-        public synchronized ArrayList<Long> getFastSentSeries() {
+        public synchronized long getFastSentSeries(long[] series) {
+            sampleSharedMemory();
             manageBuckets();
-            return getSentSeries(this.m_fastBuckets);
+            m_fastBuckets.copySeries(m_fastBuckets.m_bytesSent, series);
+            return m_fastBuckets.m_lastPeriod;
         }
 
-        public synchronized ArrayList<Long> getFastReceivedSeries() {
+        public synchronized long getFastReceivedSeries(long[] series) {
+            sampleSharedMemory();
             manageBuckets();
-            return getReceivedSeries(this.m_fastBuckets);
+            m_fastBuckets.copySeries(m_fastBuckets.m_bytesReceived, series);
+            return m_fastBuckets.m_lastPeriod;
         }
     }
 }
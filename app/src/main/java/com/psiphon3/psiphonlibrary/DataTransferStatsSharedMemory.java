@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary;
+
+import android.os.Build;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+import androidx.annotation.RequiresApi;
+
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+// Shared memory region the tunnel service process writes the data transfer stats to in place
+// and the UI process maps read only, so that the UI can sample the latest stats without any
+// Binder transactions.
+//
+// The region is an array of longs guarded by a seqlock: the writer makes the sequence odd
+// before and even again after modifying the region, and the reader retries until it sees the
+// same even sequence before and after copying. The region is accessed outside of the Java
+// memory model, so the accesses are ordered with explicit VarHandle fences, which is why the
+// region is only used from API 33 on. Older versions keep receiving the stats in messages.
+@RequiresApi(api = Build.VERSION_CODES.TIRAMISU)
+class DataTransferStatsSharedMemory {
+    private static final String NAME = "psiphon_data_transfer_stats";
+    private static final int MAX_READ_ATTEMPTS = 8;
+
+    // Rings of buckets stored in the region
+    static final int SLOW_BUCKETS = 0;
+    static final int FAST_BUCKETS = 1;
+    private static final int RING_COUNT = 2;
+
+    // Region layout, in longs. Each ring is stored as the sent array followed by the
+    // received array.
+    private static final int SEQUENCE = 0;
+    private static final int CONNECTED_TIME = 1;
+    private static final int TOTAL_BYTES_SENT = 2;
+    private static final int TOTAL_BYTES_RECEIVED = 3;
+    private static final int LAST_PERIODS = 4;
+    private static final int BUCKETS = LAST_PERIODS + RING_COUNT;
+
+    private final SharedMemory m_sharedMemory;
+    private final ByteBuffer m_mapping;
+    private final LongBuffer m_longs;
+    private final int m_bucketCount;
+    private long m_sequence;
+    private long[] m_snapshot;
+
+    private DataTransferStatsSharedMemory(SharedMemory sharedMemory, ByteBuffer mapping, int bucketCount) {
+        m_sharedMemory = sharedMemory;
+        m_mapping = mapping;
+        m_longs = mapping.order(ByteOrder.nativeOrder()).asLongBuffer();
+        m_bucketCount = bucketCount;
+    }
+
+    private static int sizeInBytes(int bucketCount) {
+        return (BUCKETS + 2 * RING_COUNT * bucketCount) * 8;
+    }
+
+    // Creates the region in the service process. The region itself is made read only once
+    // mapped here, the mappings of the clients cannot be used to modify it.
+    static DataTransferStatsSharedMemory create(int bucketCount) throws ErrnoException {
+        SharedMemory sharedMemory = SharedMemory.create(NAME, sizeInBytes(bucketCount));
+        try {
+            ByteBuffer mapping = sharedMemory.mapReadWrite();
+            sharedMemory.setProtect(OsConstants.PROT_READ);
+            return new DataTransferStatsSharedMemory(sharedMemory, mapping, bucketCount);
+        } catch (ErrnoException e) {
+            sharedMemory.close();
+            throw e;
+        }
+    }
+
+    // Maps a region received from the service in a client process
+    static DataTransferStatsSharedMemory mapReadOnly(SharedMemory sharedMemory, int bucketCount) throws ErrnoException {
+        if (sharedMemory.getSize() < sizeInBytes(bucketCount)) {
+            sharedMemory.close();
+            throw new ErrnoException("mapReadOnly", OsConstants.EINVAL);
+        }
+        try {
+            return new DataTransferStatsSharedMemory(sharedMemory, sharedMemory.mapReadOnly(), bucketCount);
+        } catch (ErrnoException e) {
+            sharedMemory.close();
+            throw e;
+        }
+    }
+
+    SharedMemory getSharedMemory() {
+        return m_sharedMemory;
+    }
+
+    void close() {
+        SharedMemory.unmap(m_mapping);
+        m_sharedMemory.close();
+    }
+
+    // Writer side, calls must be serialized by the caller
+
+    void beginWrite() {
+        m_longs.put(SEQUENCE, ++m_sequence);
+        // The odd sequence is stored before any of the modifications
+        VarHandle.storeStoreFence();
+    }
+
+    void endWrite() {
+        // The modifications are stored before the even sequence
+        VarHandle.releaseFence();
+        m_longs.put(SEQUENCE, ++m_sequence);
+    }
+
+    void writeTotals(long connectedTime, long totalBytesSent, long totalBytesReceived) {
+        m_longs.put(CONNECTED_TIME, connectedTime);
+        m_longs.put(TOTAL_BYTES_SENT, totalBytesSent);
+        m_longs.put(TOTAL_BYTES_RECEIVED, totalBytesReceived);
+    }
+
+    void writeBucket(int ring, int index, long bytesSent, long bytesReceived) {
+        m_longs.put(BUCKETS + 2 * ring * m_bucketCount + index, bytesSent);
+        m_longs.put(BUCKETS + (2 * ring + 1) * m_bucketCount + index, bytesReceived);
+    }
+
+    void writeLastPeriod(int ring, long lastPeriod) {
+        m_longs.put(LAST_PERIODS + ring, lastPeriod);
+    }
+
+    // Reader side, calls must be serialized by the caller
+
+    // Copies a consistent snapshot of the region, returns false if the writer kept
+    // modifying the region for all of the attempts.
+    boolean read() {
+        if (m_snapshot == null) {
+            m_snapshot = new long[m_longs.capacity()];
+        }
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            long sequence = m_longs.get(SEQUENCE);
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            // The copy is loaded after the sequence and before the sequence is loaded again
+            VarHandle.acquireFence();
+            m_longs.position(0);
+            m_longs.get(m_snapshot);
+            VarHandle.loadLoadFence();
+            if (m_longs.get(SEQUENCE) == sequence) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Accessors of the snapshot copied by the last successful read()
+
+    long getConnectedTime() {
+        return m_snapshot[CONNECTED_TIME];
+    }
+
+    long getTotalBytesSent() {
+        return m_snapshot[TOTAL_BYTES_SENT];
+    }
+
+    long getTotalBytesReceived() {
+        return m_snapshot[TOTAL_BYTES_RECEIVED];
+    }
+
+    long getLastPeriod(int ring) {
+        return m_snapshot[LAST_PERIODS + ring];
+    }
+
+    void copyBuckets(int ring, long[] bytesSent, long[] bytesReceived) {
+        System.arraycopy(m_snapshot, BUCKETS + 2 * ring * m_bucketCount, bytesSent, 0, m_bucketCount);
+        System.arraycopy(m_snapshot, BUCKETS + (2 * ring + 1) * m_bucketCount, bytesReceived, 0, m_bucketCount);
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary;
+
+import android.os.SystemClock;
+
+import com.psiphon3.log.MyLog;
+
+import java.util.HashMap;
+
+// Ingestion of the tunnel core diagnostic notices, off the main thread.
+//
+// Notices are queued by the tunnel core callback threads in a bounded ring and handed over to
+// MyLog by a worker thread. The ring is the only place notices are dropped: when MyLog's own
+// queue is full the worker waits for it to make room rather than letting MyLog drop them, and
+// the notices being handed over count towards the capacity of the ring. When the ring is full
+// the overflow policy, set when the pipeline is created, decides which notices are dropped:
+// - DROP_OLDEST makes room for the new notice by dropping the oldest queued one.
+// - SAMPLE_BY_NOTICE_TYPE only admits one in SAMPLE_INTERVAL of the new notices of each notice
+//   type, dropping the oldest queued one to make room, so that a burst of one notice type
+//   doesn't push all of the others out.
+//
+// The enqueued, dropped and flushed counts are logged as a diagnostic while notices are being
+// dropped, and when the pipeline is stopped.
+class DiagnosticNoticePipeline {
+    enum OverflowPolicy {
+        DROP_OLDEST,
+        SAMPLE_BY_NOTICE_TYPE,
+    }
+
+    private static final int SAMPLE_INTERVAL = 10;
+    // Delay before offering a notice to MyLog again, when its queue is full
+    private static final long HANDOFF_RETRY_MS = 10;
+    private static final long REPORT_INTERVAL_MS = 10 * 1000;
+    private static final String NOTICE_TYPE_PREFIX = "\"noticeType\":\"";
+
+    private final String[] m_notices;
+    private final long[] m_timestamps;
+    private int m_head;
+    private int m_size;
+    // Notices taken out of the ring which the worker has not handed over to MyLog yet
+    private int m_handoffCount;
+    private final OverflowPolicy m_overflowPolicy;
+    // Number of notices of each type that overflowed since the ring was last empty
+    private final HashMap<String, Integer> m_overflowCounts = new HashMap<>();
+    private Thread m_worker;
+
+    private long m_enqueuedCount;
+    private long m_droppedCount;
+    private long m_flushedCount;
+    private long m_reportedDroppedCount;
+    private long m_lastReportTime;
+
+    DiagnosticNoticePipeline(int capacity, OverflowPolicy overflowPolicy) {
+        m_notices = new String[capacity];
+        m_timestamps = new long[capacity];
+        m_overflowPolicy = overflowPolicy;
+    }
+
+    synchronized void start() {
+        if (m_worker != null) {
+            return;
+        }
+        m_worker = new Thread(this::drain, "DiagnosticNoticePipeline");
+        m_worker.start();
+    }
+
+    // Stops the worker once it has flushed the queued notices
+    void stop() {
+        Thread worker;
+        synchronized (this) {
+            worker = m_worker;
+            m_worker = null;
+            notifyAll();
+        }
+        if (worker == null) {
+            return;
+        }
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        report("DiagnosticNoticePipeline: stopped");
+    }
+
+    // Called from the tunnel core callback threads
+    void offer(long timestamp, String notice) {
+        synchronized (this) {
+            if (m_worker != null) {
+                enqueue(timestamp, notice);
+                return;
+            }
+        }
+        // Not running, there is no queue to protect from bursts
+        MyLog.notice(timestamp, notice);
+    }
+
+    private void enqueue(long timestamp, String notice) {
+        int capacity = m_notices.length;
+        if (m_size + m_handoffCount >= capacity) {
+            if (m_overflowPolicy == OverflowPolicy.SAMPLE_BY_NOTICE_TYPE) {
+                String noticeType = getNoticeType(notice);
+                Integer count = m_overflowCounts.get(noticeType);
+                count = count == null ? 1 : count + 1;
+                m_overflowCounts.put(noticeType, count);
+                if (count % SAMPLE_INTERVAL != 1) {
+                    m_droppedCount++;
+                    return;
+                }
+            }
+            if (m_size == 0) {
+                // All of the notices are being handed over, there is no older one to drop
+                m_droppedCount++;
+                return;
+            }
+            // Drop the oldest
+            m_notices[m_head] = null;
+            m_head = (m_head + 1) % capacity;
+            m_size--;
+            m_droppedCount++;
+        }
+        int tail = (m_head + m_size) % capacity;
+        m_notices[tail] = notice;
+        m_timestamps[tail] = timestamp;
+        m_size++;
+        m_enqueuedCount++;
+        if (m_size == 1) {
+            notifyAll();
+        }
+    }
+
+    private void drain() {
+        String[] notices = new String[m_notices.length];
+        long[] timestamps = new long[m_notices.length];
+        while (true) {
+            int count;
+            synchronized (this) {
+                while (m_size == 0 && m_worker == Thread.currentThread()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+                if (m_size == 0) {
+                    return;
+                }
+                count = m_size;
+                for (int i = 0; i < count; i++) {
+                    int index = (m_head + i) % m_notices.length;
+                    notices[i] = m_notices[index];
+                    timestamps[i] = m_timestamps[index];
+                    m_notices[index] = null;
+                }
+                m_head = (m_head + count) % m_notices.length;
+                m_size = 0;
+                m_handoffCount = count;
+                m_overflowCounts.clear();
+            }
+            for (int i = 0; i < count; i++) {
+                while (!MyLog.offerNotice(timestamps[i], notices[i])) {
+                    SystemClock.sleep(HANDOFF_RETRY_MS);
+                }
+                notices[i] = null;
+                synchronized (this) {
+                    m_handoffCount--;
+                    m_flushedCount++;
+                }
+            }
+            long now = SystemClock.elapsedRealtime();
+            boolean shouldReport;
+            synchronized (this) {
+                shouldReport = m_droppedCount != m_reportedDroppedCount &&
+                        now - m_lastReportTime >= REPORT_INTERVAL_MS;
+                if (shouldReport) {
+                    m_lastReportTime = now;
+                }
+            }
+            if (shouldReport) {
+                report("DiagnosticNoticePipeline: dropping notices");
+            }
+        }
+    }
+
+    private void report(String msg) {
+        long enqueuedCount;
+        long droppedCount;
+        long flushedCount;
+        OverflowPolicy overflowPolicy;
+        synchronized (this) {
+            enqueuedCount = m_enqueuedCount;
+            droppedCount = m_droppedCount;
+            flushedCount = m_flushedCount;
+            overflowPolicy = m_overflowPolicy;
+            m_reportedDroppedCount = droppedCount;
+        }
+        MyLog.w(msg,
+                "enqueued", enqueuedCount,
+                "dropped", droppedCount,
+                "flushed", flushedCount,
+                "overflowPolicy", overflowPolicy.name());
+    }
+
+    // Finds the notice type without parsing the whole notice
+    private static String getNoticeType(String notice) {
+        int start = notice.indexOf(NOTICE_TYPE_PREFIX);
+        if (start < 0) {
+            return "";
+        }
+        start += NOTICE_TYPE_PREFIX.length();
+        int end = notice.indexOf('"', start);
+        return end < 0 ? "" : notice.substring(start, end);
+    }
+}
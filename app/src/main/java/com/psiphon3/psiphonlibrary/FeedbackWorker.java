@@ -30,26 +30,38 @@ import androidx.work.Data;
 import androidx.work.RxWorker;
 import androidx.work.WorkerParameters;
 
+import com.fasterxml.jackson.core.Base64Variants;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.psiphon3.PsiphonCrashService;
 import com.psiphon3.R;
 import com.psiphon3.log.LogEntry;
+import com.psiphon3.log.LogPayload;
 import com.psiphon3.log.LoggingContentProvider;
 import com.psiphon3.log.MyLog;
+import com.psiphon3.log.StringResourceCache;
 
 import net.grandcentrix.tray.AppPreferences;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
 
 import ca.psiphon.PsiphonTunnel;
 import ca.psiphon.PsiphonTunnel.PsiphonTunnelFeedback;
@@ -67,8 +79,16 @@ import io.reactivex.schedulers.Schedulers;
  * rescheduled.
  */
 public class FeedbackWorker extends RxWorker {
-    // log JSON max size to read from logs DB
-    private final static int MAX_LOG_SOURCE_JSON_SIZE_BYTES = 1 << 20; // 1MB
+    // Sending the diagnostics compressed, as CompressedDiagnosticInfo with Metadata version 5,
+    // needs support from the feedback server. Until then they are sent as plain DiagnosticInfo
+    // with Metadata version 4, and the logs read are capped at 1MB as before.
+    private final static boolean SEND_COMPRESSED_DIAGNOSTICS = false;
+    // Budget of the logs read from the logs DB, in gzip compressed diagnostics bytes
+    private final static int MAX_COMPRESSED_LOG_BYTES = 1 << 20; // 1MB
+    // Also caps the log payload bytes read, which bounds the size of the decompressed diagnostics
+    private final static int MAX_LOG_SOURCE_BYTES = SEND_COMPRESSED_DIAGNOSTICS ?
+            16 << 20 : // 16MB
+            1 << 20; // 1MB
 
     private final TunnelServiceInteractor tunnelServiceInteractor;
     private final boolean sendDiagnosticInfo;
@@ -338,155 +358,268 @@ public class FeedbackWorker extends RxWorker {
                 });
     }
 
+    // Streams the diagnostics JSON with a JsonGenerator, writing the logs one at a time straight
+    // from the cursor so that neither the logs nor a JSON tree of them are held in memory.
+    // When SEND_COMPRESSED_DIAGNOSTICS is set the diagnostics go through gzip to a temporary
+    // file, which the feedback JSON then carries as the base64 CompressedDiagnosticInfo string,
+    // marked by the Metadata contentEncoding. Otherwise they are written as DiagnosticInfo
+    // straight into the feedback JSON. PsiphonTunnelFeedback takes the feedback as a string.
     private static @NonNull String createFeedbackData(Context context,
                               boolean shouldIncludeDiagnostics,
                               String email,
                               String feedbackText,
                               String surveyResponsesJson,
                               String feedbackId,
-                              long beforeTimeMillis) throws JSONException {
-        // Top level json object
-        JSONObject feedbackJsonObject = new JSONObject();
+                              long beforeTimeMillis) throws IOException {
+        File diagnosticsFile = new File(context.getCacheDir(), "feedback-" + feedbackId + ".json.gz");
+        boolean shouldCompressDiagnostics = shouldIncludeDiagnostics && SEND_COMPRESSED_DIAGNOSTICS;
+        try {
+            if (shouldCompressDiagnostics) {
+                CountingOutputStream compressedOut = new CountingOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(diagnosticsFile)));
+                try (JsonGenerator generator = new JsonFactory().createGenerator(
+                        new GZIPOutputStream(compressedOut), JsonEncoding.UTF8)) {
+                    writeDiagnosticInfo(generator, context, beforeTimeMillis, compressedOut);
+                }
+            }
 
-        // Add metadata
-        JSONObject metadata = new JSONObject();
+            StringWriter feedbackWriter = new StringWriter();
+            try (JsonGenerator generator = new JsonFactory().createGenerator(feedbackWriter)) {
+                // Top level json object
+                generator.writeStartObject();
+
+                // Add metadata
+                generator.writeObjectFieldStart("Metadata");
+                generator.writeStringField("platform", "android");
+                generator.writeNumberField("version", SEND_COMPRESSED_DIAGNOSTICS ? 5 : 4);
+                generator.writeStringField("id", feedbackId);
+                if (shouldCompressDiagnostics) {
+                    generator.writeStringField("contentEncoding", "gzip");
+                }
+                generator.writeEndObject();
 
-        metadata.put("platform", "android");
-        metadata.put("version", 4);
-        metadata.put("id", feedbackId);
 
-        feedbackJsonObject.put("Metadata", metadata);
+                // Add feedback text and / or surveyResponses
+                if (feedbackText.length() > 0 || surveyResponsesJson.length() > 0) {
+                    generator.writeObjectFieldStart("Feedback");
+                    generator.writeStringField("email", email);
 
+                    generator.writeObjectFieldStart("Message");
+                    generator.writeStringField("text", feedbackText);
+                    generator.writeEndObject();
 
-        // Add feedback text and / or surveyResponses
-        if (feedbackText.length() > 0 || surveyResponsesJson.length() > 0) {
-            JSONObject feedbackInfo = new JSONObject();
-            feedbackInfo.put("email", email);
+                    generator.writeObjectFieldStart("Survey");
+                    generator.writeStringField("json", surveyResponsesJson);
+                    generator.writeEndObject();
 
-            JSONObject feedbackMessageInfo = new JSONObject();
-            feedbackMessageInfo.put("text", feedbackText);
-            feedbackInfo.put("Message", feedbackMessageInfo);
+                    generator.writeEndObject();
+                }
 
-            JSONObject feedbackSurveyInfo = new JSONObject();
-            feedbackSurveyInfo.put("json", surveyResponsesJson);
-            feedbackInfo.put("Survey", feedbackSurveyInfo);
+                if (shouldCompressDiagnostics) {
+                    generator.writeFieldName("CompressedDiagnosticInfo");
+                    try (InputStream in = new BufferedInputStream(new FileInputStream(diagnosticsFile))) {
+                        generator.writeBinary(Base64Variants.MIME_NO_LINEFEEDS, in, (int) diagnosticsFile.length());
+                    }
+                } else if (shouldIncludeDiagnostics) {
+                    generator.writeFieldName("DiagnosticInfo");
+                    writeDiagnosticInfo(generator, context, beforeTimeMillis, null);
+                }
 
-            feedbackJsonObject.put("Feedback", feedbackInfo);
+                generator.writeEndObject();
+            }
+            return feedbackWriter.toString();
+        } finally {
+            diagnosticsFile.delete();
         }
+    }
 
-        if (shouldIncludeDiagnostics) {
-            JSONObject diagnosticInfo = new JSONObject();
-
-            JSONObject sysInfo = new JSONObject();
-            sysInfo.put("isRooted", Utils.isRooted());
-            sysInfo.put("isPlayStoreBuild", EmbeddedValues.IS_PLAY_STORE_BUILD);
-            sysInfo.put("language", Locale.getDefault().getLanguage());
-            sysInfo.put("networkTypeName", Utils.getNetworkTypeName(context));
-
-            JSONObject sysInfo_Build = new JSONObject();
-            sysInfo_Build.put("BRAND", Build.BRAND);
-            sysInfo_Build.put("CPU_ABI", Build.CPU_ABI);
-            sysInfo_Build.put("MANUFACTURER", Build.MANUFACTURER);
-            sysInfo_Build.put("MODEL", Build.MODEL);
-            sysInfo_Build.put("DISPLAY", Build.DISPLAY);
-            sysInfo_Build.put("TAGS", Build.TAGS);
-            sysInfo_Build.put("VERSION__CODENAME", Build.VERSION.CODENAME);
-            sysInfo_Build.put("VERSION__RELEASE", Build.VERSION.RELEASE);
-            sysInfo_Build.put("VERSION__SDK_INT", Build.VERSION.SDK_INT);
-
-            sysInfo.put("Build", sysInfo_Build);
-
-            JSONObject sysInfo_psiphonEmbeddedValues = new JSONObject();
-            sysInfo_psiphonEmbeddedValues.put("PROPAGATION_CHANNEL_ID", EmbeddedValues.PROPAGATION_CHANNEL_ID);
-            sysInfo_psiphonEmbeddedValues.put("SPONSOR_ID", EmbeddedValues.SPONSOR_ID);
-            sysInfo_psiphonEmbeddedValues.put("CLIENT_VERSION", EmbeddedValues.CLIENT_VERSION);
-
-            sysInfo.put("PsiphonInfo", sysInfo_psiphonEmbeddedValues);
-
-            diagnosticInfo.put("SystemInformation", sysInfo);
-
+    private static void writeDiagnosticInfo(JsonGenerator generator,
+                              Context context,
+                              long beforeTimeMillis,
+                              CountingOutputStream compressedOut) throws IOException {
+        generator.writeStartObject();
+
+        generator.writeObjectFieldStart("SystemInformation");
+        generator.writeBooleanField("isRooted", Utils.isRooted());
+        generator.writeBooleanField("isPlayStoreBuild", EmbeddedValues.IS_PLAY_STORE_BUILD);
+        generator.writeStringField("language", Locale.getDefault().getLanguage());
+        generator.writeStringField("networkTypeName", Utils.getNetworkTypeName(context));
+
+        generator.writeObjectFieldStart("Build");
+        generator.writeStringField("BRAND", Build.BRAND);
+        generator.writeStringField("CPU_ABI", Build.CPU_ABI);
+        generator.writeStringField("MANUFACTURER", Build.MANUFACTURER);
+        generator.writeStringField("MODEL", Build.MODEL);
+        generator.writeStringField("DISPLAY", Build.DISPLAY);
+        generator.writeStringField("TAGS", Build.TAGS);
+        generator.writeStringField("VERSION__CODENAME", Build.VERSION.CODENAME);
+        generator.writeStringField("VERSION__RELEASE", Build.VERSION.RELEASE);
+        generator.writeNumberField("VERSION__SDK_INT", Build.VERSION.SDK_INT);
+        generator.writeEndObject();
+
+        generator.writeObjectFieldStart("PsiphonInfo");
+        generator.writeStringField("PROPAGATION_CHANNEL_ID", EmbeddedValues.PROPAGATION_CHANNEL_ID);
+        generator.writeStringField("SPONSOR_ID", EmbeddedValues.SPONSOR_ID);
+        generator.writeStringField("CLIENT_VERSION", EmbeddedValues.CLIENT_VERSION);
+        generator.writeEndObject();
+
+        generator.writeEndObject();
+
+        writeLogHistory(generator, context, beforeTimeMillis, compressedOut);
+
+        // Check if we have native crash data to include. The report is read in full before
+        // the CrashHistory array is started, so that a failed read can't leave it unbalanced,
+        // and the report is deleted either way.
+        File crashReportFile = new File(PsiphonCrashService.getFinalCrashReportPath(context));
+        if (crashReportFile.exists()) {
+            List<String> crashReportLines = new ArrayList<>();
+            try (BufferedReader in = new BufferedReader(new FileReader(crashReportFile))) {
+                String str;
+                while ((str = in.readLine()) != null) {
+                    crashReportLines.add(str);
+                }
+            } catch (IOException e) {
+                MyLog.w("FeedbackUpload: failed to read crash report: " + e);
+                crashReportLines.clear();
+            } finally {
+                crashReportFile.delete();
+            }
+            if (!crashReportLines.isEmpty()) {
+                generator.writeArrayFieldStart("CrashHistory");
+                for (String line : crashReportLines) {
+                    generator.writeString(line);
+                }
+                generator.writeEndArray();
+            }
+        }
 
-            JSONArray diagnosticHistory = new JSONArray();
-            JSONArray statusHistory = new JSONArray();
+        generator.writeEndObject();
+    }
 
+    // Writes the DiagnosticHistory and StatusHistory arrays from the logs database, newest logs
+    // first. The logs are ordered by timestamp while the two arrays are written one after the
+    // other, so the logs are read twice. The first pass writes the diagnostic logs until the
+    // compressed output reaches MAX_COMPRESSED_LOG_BYTES, which sets the oldest log read, and
+    // the second pass only reads the status logs from then on. Uncompressed diagnostics, with
+    // a null compressedOut, are only bounded by MAX_LOG_SOURCE_BYTES.
+    private static void writeLogHistory(JsonGenerator generator, Context context, long beforeTimeMillis,
+                                        CountingOutputStream compressedOut) throws IOException {
+        Uri uri = LoggingContentProvider.CONTENT_URI.buildUpon()
+                .appendPath("all")
+                .appendPath(String.valueOf(beforeTimeMillis))
+                .build();
+        ContentResolver contentResolver = context.getContentResolver();
+        // Include the logs still in the log shards
+        contentResolver.call(LoggingContentProvider.CONTENT_URI,
+                LoggingContentProvider.METHOD_IMPORT_LOG_SHARDS, null, null);
+
+        int logCount = 0;
+        long oldestTimestamp = beforeTimeMillis;
+        generator.writeArrayFieldStart("DiagnosticHistory");
+        try (Cursor cursor = contentResolver.query(uri, null, null, null, null)) {
             int totalBytesRead = 0;
-
-            // Read up to MAX_LOG_SOURCE_JSON_SIZE_BYTES from the logs database
-            // and add to diagnostic / status info
-            Uri uri = LoggingContentProvider.CONTENT_URI.buildUpon()
-                    .appendPath("all")
-                    .appendPath(String.valueOf(beforeTimeMillis))
+            // The compressed count lags behind by what the generator and the compressor buffer,
+            // which is small next to the budget
+            while (cursor != null &&
+                    (compressedOut == null || compressedOut.getCount() < MAX_COMPRESSED_LOG_BYTES) &&
+                    totalBytesRead < MAX_LOG_SOURCE_BYTES && cursor.moveToNext()) {
+                final LogEntry logEntry = LoggingContentProvider.convertRows(cursor);
+                totalBytesRead += logEntry.getPayload().length;
+                logCount++;
+                oldestTimestamp = logEntry.getTimestamp();
+                if (logEntry.isDiagnostic()) {
+                    writeDiagnosticLog(generator, logEntry);
+                }
+            }
+        }
+        generator.writeEndArray();
+
+        generator.writeArrayFieldStart("StatusHistory");
+        if (logCount > 0) {
+            Uri statusLogsUri = LoggingContentProvider.CONTENT_URI.buildUpon()
+                    .appendPath("logs")
+                    .appendQueryParameter(LoggingContentProvider.QUERY_PARAMETER_TYPE,
+                            LoggingContentProvider.LOG_TYPE_STATUS)
+                    .appendQueryParameter(LoggingContentProvider.QUERY_PARAMETER_FROM,
+                            String.valueOf(oldestTimestamp))
+                    .appendQueryParameter(LoggingContentProvider.QUERY_PARAMETER_TO,
+                            String.valueOf(beforeTimeMillis))
                     .build();
-            ContentResolver contentResolver = context.getContentResolver();
-            try (Cursor cursor = contentResolver.query(uri, null, null, null, null)) {
-                while (totalBytesRead < MAX_LOG_SOURCE_JSON_SIZE_BYTES && cursor.moveToNext()) {
-                    final LogEntry logEntry = LoggingContentProvider.convertRows(cursor);
-                    totalBytesRead += logEntry.getLogJson().length();
-
-                    JSONObject entry = new JSONObject();
-                    entry.put("timestamp!!timestamp", Utils.getISO8601String(new Date(logEntry.getTimestamp())));
-
-                    JSONObject logJsonObject = new JSONObject(logEntry.getLogJson());
-
-                    if (logEntry.isDiagnostic()) {
-                        Object msg = logJsonObject.opt("msg");
-                        Object data = logJsonObject.opt("data");
-                        entry.put("msg", msg == null ? JSONObject.NULL : msg);
-                        entry.put("data", data == null ? JSONObject.NULL : data);
-
-                        diagnosticHistory.put(entry);
-                    } else {
-                        int sensitivity = logJsonObject.optInt("sensitivity", 0);
-                        if (sensitivity == MyLog.Sensitivity.SENSITIVE_LOG) {
-                            // Skip sensitive logs
-                            continue;
-                        }
-                        int resourceID = context.getResources().getIdentifier(logJsonObject
-                                .getString("stringResourceName"), null, null);
-                        entry.put("id", resourceID == 0 ?
-                                "" : context.getResources().getResourceEntryName(resourceID));
-
-                        entry.put("priority", logEntry.getPriority());
-                        entry.put("formatArgs", JSONObject.NULL);
-                        entry.put("throwable", JSONObject.NULL);
-
-                        if (sensitivity != MyLog.Sensitivity.SENSITIVE_FORMAT_ARGS) {
-                            JSONArray formatArgsJsonArray = logJsonObject.optJSONArray("formatArgs");
-                            if (formatArgsJsonArray != null && formatArgsJsonArray.length() > 0) {
-                                entry.put("formatArgs", formatArgsJsonArray);
-                            }
-                        }
-
-                        statusHistory.put(entry);
-                    }
+            try (Cursor cursor = contentResolver.query(statusLogsUri, null, null, null, null)) {
+                while (cursor != null && cursor.moveToNext()) {
+                    writeStatusLog(generator, context, LoggingContentProvider.convertRows(cursor));
                 }
-                diagnosticInfo.put("DiagnosticHistory", diagnosticHistory);
-                diagnosticInfo.put("StatusHistory", statusHistory);
             }
-            // Check if we have native crash data to include
-            File crashReportFile = new File(PsiphonCrashService.getFinalCrashReportPath(context));
-            if (crashReportFile.exists()) {
-                JSONArray crashHistory = new JSONArray();
-                try {
-                    BufferedReader in;
-                    String str;
-                    in = new BufferedReader(new FileReader(crashReportFile));
-                    while ((str = in.readLine()) != null) {
-                        crashHistory.put(str);
-                    }
-                    in.close();
+        }
+        generator.writeEndArray();
+    }
 
-                } catch (IOException ignored) {
-                }
+    private static void writeDiagnosticLog(JsonGenerator generator, LogEntry logEntry) throws IOException {
+        LogPayload.Diagnostic diagnostic = LogPayload.decodeDiagnostic(logEntry.getPayload());
+        if (diagnostic == null) {
+            return;
+        }
+        generator.writeStartObject();
+        generator.writeStringField("timestamp!!timestamp", Utils.getISO8601String(new Date(logEntry.getTimestamp())));
+        diagnostic.writeFields(generator);
+        generator.writeEndObject();
+    }
 
-                crashReportFile.delete();
-                if (crashHistory.length() > 0) {
-                    diagnosticInfo.put("CrashHistory", crashHistory);
-                }
+    private static void writeStatusLog(JsonGenerator generator, Context context, LogEntry logEntry) throws IOException {
+        LogPayload.Status status = LogPayload.decodeStatus(logEntry.getPayload());
+        if (status == null) {
+            return;
+        }
+        int sensitivity = status.getSensitivity();
+        if (sensitivity == MyLog.Sensitivity.SENSITIVE_LOG) {
+            // Skip sensitive logs
+            return;
+        }
+        generator.writeStartObject();
+        generator.writeStringField("timestamp!!timestamp", Utils.getISO8601String(new Date(logEntry.getTimestamp())));
+        // The entry name is the part of the full resource name after the type
+        String stringResourceName = status.getStringResourceName();
+        generator.writeStringField("id", StringResourceCache.getId(context, stringResourceName) == 0 ?
+                "" : stringResourceName.substring(stringResourceName.lastIndexOf('/') + 1));
+
+        generator.writeNumberField("priority", logEntry.getPriority());
+        generator.writeFieldName("formatArgs");
+        if (sensitivity != MyLog.Sensitivity.SENSITIVE_FORMAT_ARGS &&
+                status.getFormatArgs().length > 0) {
+            generator.writeStartArray();
+            for (Object formatArg : status.getFormatArgs()) {
+                LogPayload.writeJsonValue(generator, formatArg);
             }
-            feedbackJsonObject.put("DiagnosticInfo", diagnosticInfo);
+            generator.writeEndArray();
+        } else {
+            generator.writeNull();
+        }
+        generator.writeNullField("throwable");
+        generator.writeEndObject();
+    }
+
+    // Counts the bytes written to the underlying stream
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        long getCount() {
+            return count;
         }
 
-        return feedbackJsonObject.toString();
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
     }
 }
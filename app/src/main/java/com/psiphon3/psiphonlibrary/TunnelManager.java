@@ -40,7 +40,9 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.Parcelable;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Pair;
 
@@ -66,7 +68,6 @@ import org.json.JSONObject;
 import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -97,6 +98,7 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
         CHANGED_LOCALE,
         NFC_CONNECTION_INFO_EXCHANGE_IMPORT,
         NFC_CONNECTION_INFO_EXCHANGE_EXPORT,
+        SET_DATA_TRANSFER_STATS_INTERVAL,
     }
 
     // Service -> Client
@@ -113,6 +115,9 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
     public static final String INTENT_ACTION_VPN_REVOKED = "com.psiphon3.psiphonlibrary.TunnelManager.INTENT_ACTION_VPN_REVOKED";
     public static final String INTENT_ACTION_STOP_TUNNEL = "com.psiphon3.psiphonlibrary.TunnelManager.ACTION_STOP_TUNNEL";
     public static final String IS_CLIENT_AN_ACTIVITY = "com.psiphon3.psiphonlibrary.TunnelManager.IS_CLIENT_AN_ACTIVITY";
+    public static final String CAN_CLIENT_MAP_DATA_TRANSFER_STATS = "com.psiphon3.psiphonlibrary.TunnelManager.CAN_CLIENT_MAP_DATA_TRANSFER_STATS";
+    // Interval at which the client wants data transfer stats updates, 0 for none
+    public static final String DATA_TRANSFER_STATS_INTERVAL_MS = "com.psiphon3.psiphonlibrary.TunnelManager.DATA_TRANSFER_STATS_INTERVAL_MS";
     public static final String INTENT_ACTION_UNSAFE_TRAFFIC = "com.psiphon3.psiphonlibrary.TunnelManager.INTENT_ACTION_UNSAFE_TRAFFIC";
     public static final String INTENT_ACTION_UPSTREAM_PROXY_ERROR = "com.psiphon3.psiphonlibrary.TunnelManager.UPSTREAM_PROXY_ERROR";
 
@@ -127,10 +132,15 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
     static final String DATA_TRANSFER_STATS_CONNECTED_TIME = "dataTransferStatsConnectedTime";
     static final String DATA_TRANSFER_STATS_TOTAL_BYTES_SENT = "dataTransferStatsTotalBytesSent";
     static final String DATA_TRANSFER_STATS_TOTAL_BYTES_RECEIVED = "dataTransferStatsTotalBytesReceived";
-    static final String DATA_TRANSFER_STATS_SLOW_BUCKETS = "dataTransferStatsSlowBuckets";
-    static final String DATA_TRANSFER_STATS_SLOW_BUCKETS_LAST_START_TIME = "dataTransferStatsSlowBucketsLastStartTime";
-    static final String DATA_TRANSFER_STATS_FAST_BUCKETS = "dataTransferStatsFastBuckets";
-    static final String DATA_TRANSFER_STATS_FAST_BUCKETS_LAST_START_TIME = "dataTransferStatsFastBucketsLastStartTime";
+    static final String DATA_TRANSFER_STATS_SLOW_BUCKETS_INDICES = "dataTransferStatsSlowBucketsIndices";
+    static final String DATA_TRANSFER_STATS_SLOW_BUCKETS_SENT = "dataTransferStatsSlowBucketsSent";
+    static final String DATA_TRANSFER_STATS_SLOW_BUCKETS_RECEIVED = "dataTransferStatsSlowBucketsReceived";
+    static final String DATA_TRANSFER_STATS_SLOW_BUCKETS_LAST_PERIOD = "dataTransferStatsSlowBucketsLastPeriod";
+    static final String DATA_TRANSFER_STATS_FAST_BUCKETS_INDICES = "dataTransferStatsFastBucketsIndices";
+    static final String DATA_TRANSFER_STATS_FAST_BUCKETS_SENT = "dataTransferStatsFastBucketsSent";
+    static final String DATA_TRANSFER_STATS_FAST_BUCKETS_RECEIVED = "dataTransferStatsFastBucketsReceived";
+    static final String DATA_TRANSFER_STATS_FAST_BUCKETS_LAST_PERIOD = "dataTransferStatsFastBucketsLastPeriod";
+    static final String DATA_TRANSFER_STATS_SHARED_MEMORY = "dataTransferStatsSharedMemory";
     public static final String DATA_UNSAFE_TRAFFIC_SUBJECTS_LIST = "dataUnsafeTrafficSubjects";
     public static final String DATA_UNSAFE_TRAFFIC_ACTION_URLS_LIST = "dataUnsafeTrafficActionUrls";
     public static final String DATA_NFC_CONNECTION_INFO_EXCHANGE = "dataNfcConnectionInfoExchange";
@@ -207,6 +217,9 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
     }
 
     void onCreate() {
+        // Start taking the diagnostic notices before the tunnel can emit any
+        m_diagnosticNoticePipeline.start();
+
         // Defer initialization of the PsiphonTunnel instance to onCreate(). Ensures a valid context
         // passed via hostService is available for potential Context-dependent operations that the
         // PsiphonTunnel may perform internally at any time.
@@ -247,6 +260,12 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
                     createNotification(false, TunnelState.ConnectionData.NetworkConnectionState.CONNECTING));
         }
 
+        // Clients that can map the data transfer stats region sample the stats from it
+        // rather than receiving them in messages
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            DataTransferStats.getDataTransferStatsForService().createSharedMemory();
+        }
+
         m_tunnelState.isRunning = true;
         // This service runs as a separate process, so it needs to initialize embedded values
         EmbeddedValues.initialize(getContext());
@@ -393,6 +412,8 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
 
         stopAndWaitForTunnel();
         m_compositeDisposable.dispose();
+        DataTransferStats.getDataTransferStatsForService().closeSharedMemory();
+        m_diagnosticNoticePipeline.stop();
         // Unregister host service for the VPN manager
         m_vpnManager.unregisterHostService();
     }
@@ -651,14 +672,32 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
         @NonNull
         Messenger messenger;
         boolean isActivity;
+        // Version of the data transfer stats the client is up to date with, 0 if it has not
+        // received any yet. Messenger delivers messages in order and a client that fails to
+        // receive one is dropped, so a successful send acts as the acknowledgement.
+        long dataTransferStatsVersion = 0;
+        boolean canMapDataTransferStats;
+        // The client samples the data transfer stats from the shared memory region, there
+        // is no need to send it stats updates
+        boolean isMappingDataTransferStats;
+        // Interval of the data transfer stats updates the client wants, 0 for none
+        long dataTransferStatsIntervalMs;
+        // Uptime at which the client is due its next data transfer stats update
+        long nextDataTransferStatsUptimeMs;
 
         MessengerWrapper(@NonNull Messenger messenger, Bundle data) {
             this.messenger = messenger;
             if (data != null) {
                 isActivity = data.getBoolean(IS_CLIENT_AN_ACTIVITY, false);
+                canMapDataTransferStats = data.getBoolean(CAN_CLIENT_MAP_DATA_TRANSFER_STATS, false);
+                dataTransferStatsIntervalMs = data.getLong(DATA_TRANSFER_STATS_INTERVAL_MS, 0);
             }
         }
 
+        boolean wantsDataTransferStats() {
+            return dataTransferStatsIntervalMs > 0 && !isMappingDataTransferStats;
+        }
+
         void send(Message message) throws RemoteException {
             messenger.send(message);
         }
@@ -691,11 +730,22 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
                         // Respond immediately to the new client with current connection state and
                         // data stats. All following distinct tunnel connection updates will be provided
                         // by an Rx connectionStatusUpdaterDisposable() subscription to all clients.
+                        // The data transfer stats are a full snapshot, following updates only
+                        // carry the buckets changed since.
+                        Bundle dataTransferStatsBundle = new Bundle();
+                        long dataTransferStatsVersion = DataTransferStats.getDataTransferStatsForService()
+                                .writeToBundle(dataTransferStatsBundle, 0);
+                        // Also pass the stats shared memory region to the clients that can map it
+                        Parcelable dataTransferStatsSharedMemory = client.canMapDataTransferStats ?
+                                DataTransferStats.getDataTransferStatsForService().getSharedMemory() : null;
+                        if (dataTransferStatsSharedMemory != null) {
+                            dataTransferStatsBundle.putParcelable(DATA_TRANSFER_STATS_SHARED_MEMORY, dataTransferStatsSharedMemory);
+                        }
                         List<Message> messageList = new ArrayList<>();
                         messageList.add(manager.composeClientMessage(ServiceToClientMessage.TUNNEL_CONNECTION_STATE.ordinal(),
                                 manager.getTunnelStateBundle()));
                         messageList.add(manager.composeClientMessage(ServiceToClientMessage.DATA_TRANSFER_STATS.ordinal(),
-                                manager.getDataTransferStatsBundle()));
+                                dataTransferStatsBundle));
                         for (Message message : messageList) {
                             try {
                                 client.send(message);
@@ -704,14 +754,32 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
                                 return;
                             }
                         }
+                        client.dataTransferStatsVersion = dataTransferStatsVersion;
+                        client.isMappingDataTransferStats = dataTransferStatsSharedMemory != null;
+                        client.nextDataTransferStatsUptimeMs = SystemClock.uptimeMillis() + client.dataTransferStatsIntervalMs;
                         manager.mClients.put(msg.replyTo.hashCode(), client);
                         manager.m_newClientPublishRelay.accept(new Object());
+                        manager.scheduleDataTransferStats();
                     }
                     break;
 
                 case UNREGISTER:
                     if (manager != null) {
                         manager.mClients.remove(msg.replyTo.hashCode());
+                        manager.scheduleDataTransferStats();
+                    }
+                    break;
+
+                case SET_DATA_TRANSFER_STATS_INTERVAL:
+                    if (manager != null) {
+                        MessengerWrapper client = manager.mClients.get(msg.replyTo.hashCode());
+                        if (client == null || msg.getData() == null) {
+                            return;
+                        }
+                        client.dataTransferStatsIntervalMs = msg.getData().getLong(DATA_TRANSFER_STATS_INTERVAL_MS, 0);
+                        // Bring a client that starts showing the stats up to date right away
+                        client.nextDataTransferStatsUptimeMs = SystemClock.uptimeMillis();
+                        manager.scheduleDataTransferStats();
                     }
                     break;
 
@@ -725,6 +793,7 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
                         // Client side will receive a ServiceConnection.onServiceDisconnected callback
                         // when the service finally stops.
                         manager.mClients.clear();
+                        manager.scheduleDataTransferStats();
                         manager.signalStopService();
                     }
                     break;
@@ -867,16 +936,35 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
         return data;
     }
 
-    private Bundle getDataTransferStatsBundle() {
-        Bundle data = new Bundle();
-        data.putLong(DATA_TRANSFER_STATS_CONNECTED_TIME, DataTransferStats.getDataTransferStatsForService().m_connectedTime);
-        data.putLong(DATA_TRANSFER_STATS_TOTAL_BYTES_SENT, DataTransferStats.getDataTransferStatsForService().m_totalBytesSent);
-        data.putLong(DATA_TRANSFER_STATS_TOTAL_BYTES_RECEIVED, DataTransferStats.getDataTransferStatsForService().m_totalBytesReceived);
-        data.putParcelableArrayList(DATA_TRANSFER_STATS_SLOW_BUCKETS, DataTransferStats.getDataTransferStatsForService().m_slowBuckets);
-        data.putLong(DATA_TRANSFER_STATS_SLOW_BUCKETS_LAST_START_TIME, DataTransferStats.getDataTransferStatsForService().m_slowBucketsLastStartTime);
-        data.putParcelableArrayList(DATA_TRANSFER_STATS_FAST_BUCKETS, DataTransferStats.getDataTransferStatsForService().m_fastBuckets);
-        data.putLong(DATA_TRANSFER_STATS_FAST_BUCKETS_LAST_START_TIME, DataTransferStats.getDataTransferStatsForService().m_fastBucketsLastStartTime);
-        return data;
+    // Sends each client that is due an update the data transfer stats changed since its last one
+    private void sendDataTransferStatsMessages() {
+        DataTransferStats.DataTransferStatsForService stats = DataTransferStats.getDataTransferStatsForService();
+        // Clients normally share the same version, build each distinct update only once
+        Map<Long, Bundle> bundles = new HashMap<>();
+        Map<Long, Long> versions = new HashMap<>();
+        long now = SystemClock.uptimeMillis();
+        for (Iterator<Map.Entry<Integer, MessengerWrapper>> i = mClients.entrySet().iterator(); i.hasNext(); ) {
+            MessengerWrapper messenger = i.next().getValue();
+            if (!messenger.wantsDataTransferStats() ||
+                    messenger.nextDataTransferStatsUptimeMs > now + DATA_TRANSFER_STATS_SCHEDULING_SLACK_MS) {
+                continue;
+            }
+            messenger.nextDataTransferStatsUptimeMs = now + messenger.dataTransferStatsIntervalMs;
+            long sinceVersion = messenger.dataTransferStatsVersion;
+            Bundle data = bundles.get(sinceVersion);
+            if (data == null) {
+                data = new Bundle();
+                versions.put(sinceVersion, stats.writeToBundle(data, sinceVersion));
+                bundles.put(sinceVersion, data);
+            }
+            try {
+                messenger.send(composeClientMessage(ServiceToClientMessage.DATA_TRANSFER_STATS.ordinal(), data));
+                messenger.dataTransferStatsVersion = versions.get(sinceVersion);
+            } catch (RemoteException e) {
+                // The client is dead.  Remove it from the list;
+                i.remove();
+            }
+        }
     }
 
     private final static String LEGACY_SERVER_ENTRY_FILENAME = "psiphon_server_entries.json";
@@ -895,16 +983,65 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
         return list.toString();
     }
 
+    // Tunnel core notices are handed over to MyLog by the pipeline's worker thread rather than
+    // being posted to the main thread, where bursts of notices would queue behind UI work
+    private static final int DIAGNOSTIC_NOTICE_PIPELINE_CAPACITY = 1024;
+    private final DiagnosticNoticePipeline m_diagnosticNoticePipeline = new DiagnosticNoticePipeline(
+            DIAGNOSTIC_NOTICE_PIPELINE_CAPACITY, DiagnosticNoticePipeline.OverflowPolicy.SAMPLE_BY_NOTICE_TYPE);
+
+    private final BytesTransferredAccumulator m_bytesTransferredAccumulator = new BytesTransferredAccumulator();
+    // The fast buckets are 1 second long, harvesting more often would not add any detail
+    private final long harvestBytesTransferredIntervalMs = 1000;
+    private Runnable harvestBytesTransferred = new Runnable() {
+        @Override
+        public void run() {
+            harvestBytesTransferred();
+            sendDataTransferStatsHandler.postDelayed(this, harvestBytesTransferredIntervalMs);
+        }
+    };
+
+    private void harvestBytesTransferred() {
+        long[] bytesTransferred = m_bytesTransferredAccumulator.harvest();
+        if (bytesTransferred[0] == 0 && bytesTransferred[1] == 0) {
+            return;
+        }
+        DataTransferStats.getDataTransferStatsForService().addBytesTransferred(bytesTransferred[0], bytesTransferred[1]);
+        DataTransferHistory.getInstance(m_parentService).addBytes(bytesTransferred[0], bytesTransferred[1]);
+    }
+
     private Handler sendDataTransferStatsHandler = new Handler();
-    private final long sendDataTransferStatsIntervalMs = 1000;
+    // Clients due an update within this much of a send are sent it along, so that clients
+    // with the same interval share the wakeups
+    private static final long DATA_TRANSFER_STATS_SCHEDULING_SLACK_MS = 100;
+    // Only accessed on the main thread
+    private boolean m_isSendingDataTransferStats = false;
     private Runnable sendDataTransferStats = new Runnable() {
         @Override
         public void run() {
-            sendClientMessage(ServiceToClientMessage.DATA_TRANSFER_STATS.ordinal(), getDataTransferStatsBundle());
-            sendDataTransferStatsHandler.postDelayed(this, sendDataTransferStatsIntervalMs);
+            sendDataTransferStatsMessages();
+            scheduleDataTransferStats();
         }
     };
 
+    // Schedules the next data transfer stats send for when the first client is due an update.
+    // Nothing is scheduled while no client wants updates, e.g. when no activity is showing the
+    // stats or the clients sample them from the shared memory region.
+    private void scheduleDataTransferStats() {
+        sendDataTransferStatsHandler.removeCallbacks(sendDataTransferStats);
+        if (!m_isSendingDataTransferStats) {
+            return;
+        }
+        long nextUptimeMs = Long.MAX_VALUE;
+        for (MessengerWrapper messenger : mClients.values()) {
+            if (messenger.wantsDataTransferStats()) {
+                nextUptimeMs = Math.min(nextUptimeMs, messenger.nextDataTransferStatsUptimeMs);
+            }
+        }
+        if (nextUptimeMs != Long.MAX_VALUE) {
+            sendDataTransferStatsHandler.postAtTime(sendDataTransferStats, nextUptimeMs);
+        }
+    }
+
     private void runTunnel() {
         Utils.initializeSecureRandom();
         // Also set locale
@@ -925,7 +1062,12 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
         m_tunnelState.homePages.clear();
 
         DataTransferStats.getDataTransferStatsForService().startSession();
-        sendDataTransferStatsHandler.postDelayed(sendDataTransferStats, sendDataTransferStatsIntervalMs);
+        DataTransferHistory.getInstance(m_parentService).startSession();
+        sendDataTransferStatsHandler.postDelayed(harvestBytesTransferred, harvestBytesTransferredIntervalMs);
+        sendDataTransferStatsHandler.post(() -> {
+            m_isSendingDataTransferStats = true;
+            scheduleDataTransferStats();
+        });
 
         try {
             m_vpnManager.vpnEstablish();
@@ -957,8 +1099,15 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
             m_vpnManager.vpnTeardown();
             m_tunnel.stop();
 
-            sendDataTransferStatsHandler.removeCallbacks(sendDataTransferStats);
+            sendDataTransferStatsHandler.removeCallbacks(harvestBytesTransferred);
+            sendDataTransferStatsHandler.post(() -> {
+                m_isSendingDataTransferStats = false;
+                scheduleDataTransferStats();
+            });
+            // Account for the bytes transferred since the last harvest
+            harvestBytesTransferred();
             DataTransferStats.getDataTransferStatsForService().stop();
+            DataTransferHistory.getInstance(m_parentService).stopSession();
 
             MyLog.i(R.string.stopped_tunnel, MyLog.Sensitivity.NOT_SENSITIVE);
 
@@ -1393,13 +1542,7 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
     @Override
     public void onDiagnosticMessage(final String message) {
         // Get timestamp ASAP for improved accuracy.
-        final Date now = new Date();
-        m_Handler.post(new Runnable() {
-            @Override
-            public void run() {
-                MyLog.i(now, message);
-            }
-        });
+        m_diagnosticNoticePipeline.offer(System.currentTimeMillis(), message);
     }
 
     @Override
@@ -1557,6 +1700,7 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
             public void run() {
                 m_networkConnectionStatePublishRelay.accept(TunnelState.ConnectionData.NetworkConnectionState.CONNECTING);
                 DataTransferStats.getDataTransferStatsForService().stop();
+                DataTransferHistory.getInstance(m_parentService).onDisconnected();
                 m_tunnelState.homePages.clear();
 
                 // Do not log "Connecting" if tunnel is stopping
@@ -1579,6 +1723,7 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
                 }
 
                 DataTransferStats.getDataTransferStatsForService().startConnected();
+                DataTransferHistory.getInstance(m_parentService).onConnected();
 
                 MyLog.i(R.string.tunnel_connected, MyLog.Sensitivity.NOT_SENSITIVE);
 
@@ -1634,14 +1779,9 @@ public class TunnelManager implements PsiphonTunnel.HostService, VpnManager.VpnS
 
     @Override
     public void onBytesTransferred(final long sent, final long received) {
-        m_Handler.post(new Runnable() {
-            @Override
-            public void run() {
-                DataTransferStats.DataTransferStatsForService stats = DataTransferStats.getDataTransferStatsForService();
-                stats.addBytesSent(sent);
-                stats.addBytesReceived(received);
-            }
-        });
+        // Called often from the tunnel core thread, only accumulate here and let
+        // harvestBytesTransferred update the stats.
+        m_bytesTransferredAccumulator.add(sent, received);
     }
 
     @Override
@@ -36,9 +36,12 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
 import android.text.TextUtils;
 
 import androidx.annotation.CheckResult;
+import androidx.annotation.RequiresApi;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.jakewharton.rxrelay2.BehaviorRelay;
@@ -58,15 +61,19 @@ import io.reactivex.Observable;
 import io.reactivex.ObservableEmitter;
 import io.reactivex.ObservableOnSubscribe;
 import io.reactivex.Single;
+import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.disposables.Disposable;
 
 public class TunnelServiceInteractor {
     private static final String SERVICE_STARTING_BROADCAST_INTENT = "SERVICE_STARTING_BROADCAST_INTENT";
+    // Interval of the data stats updates while dataStatsFlowable() has subscribers
+    private static final long DATA_STATS_INTERVAL_MS = 1000;
     private final BroadcastReceiver broadcastReceiver;
     private Relay<TunnelState> tunnelStateRelay = BehaviorRelay.<TunnelState>create().toSerialized();
     private Relay<Boolean> dataStatsRelay = PublishRelay.<Boolean>create().toSerialized();
 
-    private final Messenger incomingMessenger = new Messenger(new IncomingMessageHandler(this));
+    private final IncomingMessageHandler incomingMessageHandler = new IncomingMessageHandler(this);
+    private final Messenger incomingMessenger = new Messenger(incomingMessageHandler);
 
     private Rx2ServiceBindingFactory serviceBindingFactory;
     private boolean isStopped = true;
@@ -74,6 +81,13 @@ public class TunnelServiceInteractor {
     private Disposable serviceMessengerDisposable;
     private Disposable restartServiceDisposable;
     private NfcExportListener nfcExportListener;
+    // Set while the data transfer stats are sampled from the service's shared memory region,
+    // in which case the service sends no stats updates and the stats ticker drives dataStatsRelay
+    private boolean isMappingDataTransferStats = false;
+    private Disposable dataStatsTickerDisposable;
+    // Number of dataStatsFlowable() subscribers, the service only sends stats updates while
+    // there are any
+    private int dataStatsSubscriberCount = 0;
 
     public TunnelServiceInteractor(Context context, boolean registerAsActivity) {
         this.shouldRegisterAsActivity = registerAsActivity;
@@ -112,6 +126,7 @@ public class TunnelServiceInteractor {
     public void onStop(Context context) {
         isStopped = true;
         tunnelStateRelay.accept(TunnelState.unknown());
+        detachDataTransferStatsSharedMemory();
         if (serviceBindingFactory != null) {
             sendServiceMessageCompletable(TunnelManager.ClientToServiceMessage.UNREGISTER.ordinal(), null)
                     .andThen(Completable.fromAction(() -> serviceBindingFactory.unbind(context)))
@@ -184,9 +199,45 @@ public class TunnelServiceInteractor {
                 .toFlowable(BackpressureStrategy.LATEST);
     }
 
+    // Emits whether the tunnel is connected every time the data transfer stats are updated.
+    // Updates are only requested from the service while there are subscribers, so subscribe
+    // only while the stats are actually shown.
     public Flowable<Boolean> dataStatsFlowable() {
         return dataStatsRelay
-                .toFlowable(BackpressureStrategy.LATEST);
+                .toFlowable(BackpressureStrategy.LATEST)
+                .doOnSubscribe(__ -> onDataStatsSubscribersChanged(1))
+                .doOnCancel(() -> onDataStatsSubscribersChanged(-1));
+    }
+
+    private void onDataStatsSubscribersChanged(int delta) {
+        boolean wasSubscribed = dataStatsSubscriberCount > 0;
+        dataStatsSubscriberCount += delta;
+        boolean isSubscribed = dataStatsSubscriberCount > 0;
+        if (wasSubscribed == isSubscribed) {
+            return;
+        }
+        updateDataStatsTicker();
+        Bundle data = new Bundle();
+        data.putLong(TunnelManager.DATA_TRANSFER_STATS_INTERVAL_MS, getDataStatsIntervalMs());
+        sendServiceMessageCompletable(TunnelManager.ClientToServiceMessage.SET_DATA_TRANSFER_STATS_INTERVAL.ordinal(), data)
+                .subscribe();
+    }
+
+    private long getDataStatsIntervalMs() {
+        return dataStatsSubscriberCount > 0 ? DATA_STATS_INTERVAL_MS : 0;
+    }
+
+    // While the stats are sampled from the shared memory region the service sends no stats
+    // updates, notify the subscribers at the same rate instead.
+    private void updateDataStatsTicker() {
+        boolean shouldTick = isMappingDataTransferStats && dataStatsSubscriberCount > 0;
+        if (shouldTick && dataStatsTickerDisposable == null) {
+            dataStatsTickerDisposable = Observable.interval(0, DATA_STATS_INTERVAL_MS, TimeUnit.MILLISECONDS, AndroidSchedulers.mainThread())
+                    .subscribe(__ -> dataStatsRelay.accept(incomingMessageHandler.isConnected()));
+        } else if (!shouldTick && dataStatsTickerDisposable != null) {
+            dataStatsTickerDisposable.dispose();
+            dataStatsTickerDisposable = null;
+        }
     }
 
     public boolean isServiceRunning(Context context) {
@@ -244,14 +295,47 @@ public class TunnelServiceInteractor {
         serviceBindingFactory = new Rx2ServiceBindingFactory(context, intent);
         serviceMessengerDisposable = serviceBindingFactory.getMessengerObservable()
                 .doOnComplete(() -> tunnelStateRelay.accept(TunnelState.stopped()))
+                .doOnComplete(this::detachDataTransferStatsSharedMemory)
                 .doOnComplete(() -> dataStatsRelay.accept(Boolean.FALSE))
                 .subscribe();
+        // Only activities show the data transfer stats, other clients are not worth mapping
+        // the stats region for.
+        register(shouldRegisterAsActivity && Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU);
+    }
+
+    private void register(boolean canMapDataTransferStats) {
         Bundle data = new Bundle();
         data.putBoolean(TunnelManager.IS_CLIENT_AN_ACTIVITY, shouldRegisterAsActivity);
+        data.putBoolean(TunnelManager.CAN_CLIENT_MAP_DATA_TRANSFER_STATS, canMapDataTransferStats);
+        data.putLong(TunnelManager.DATA_TRANSFER_STATS_INTERVAL_MS, getDataStatsIntervalMs());
         sendServiceMessageCompletable(TunnelManager.ClientToServiceMessage.REGISTER.ordinal(), data)
                 .subscribe();
     }
 
+    @RequiresApi(api = Build.VERSION_CODES.TIRAMISU)
+    private void attachDataTransferStatsSharedMemory(SharedMemory sharedMemory) {
+        detachDataTransferStatsSharedMemory();
+        try {
+            DataTransferStats.getDataTransferStatsForUI().attachSharedMemory(sharedMemory);
+        } catch (ErrnoException e) {
+            MyLog.w("Mapping data transfer stats failed: " + e);
+            // Register again so that the service sends the stats in messages
+            register(false);
+            return;
+        }
+        isMappingDataTransferStats = true;
+        updateDataStatsTicker();
+    }
+
+    private void detachDataTransferStatsSharedMemory() {
+        if (!isMappingDataTransferStats) {
+            return;
+        }
+        isMappingDataTransferStats = false;
+        updateDataStatsTicker();
+        DataTransferStats.getDataTransferStatsForUI().detachSharedMemory();
+    }
+
     private @CheckResult Completable sendServiceMessageCompletable(int what, Bundle data) {
         if (serviceMessengerDisposable == null || serviceMessengerDisposable.isDisposed()) {
             return Completable.complete();
@@ -297,14 +381,7 @@ public class TunnelServiceInteractor {
         if (data == null) {
             return;
         }
-        data.setClassLoader(DataTransferStats.DataTransferStatsBase.Bucket.class.getClassLoader());
-        DataTransferStats.getDataTransferStatsForUI().m_connectedTime = data.getLong(TunnelManager.DATA_TRANSFER_STATS_CONNECTED_TIME);
-        DataTransferStats.getDataTransferStatsForUI().m_totalBytesSent = data.getLong(TunnelManager.DATA_TRANSFER_STATS_TOTAL_BYTES_SENT);
-        DataTransferStats.getDataTransferStatsForUI().m_totalBytesReceived = data.getLong(TunnelManager.DATA_TRANSFER_STATS_TOTAL_BYTES_RECEIVED);
-        DataTransferStats.getDataTransferStatsForUI().m_slowBuckets = data.getParcelableArrayList(TunnelManager.DATA_TRANSFER_STATS_SLOW_BUCKETS);
-        DataTransferStats.getDataTransferStatsForUI().m_slowBucketsLastStartTime = data.getLong(TunnelManager.DATA_TRANSFER_STATS_SLOW_BUCKETS_LAST_START_TIME);
-        DataTransferStats.getDataTransferStatsForUI().m_fastBuckets = data.getParcelableArrayList(TunnelManager.DATA_TRANSFER_STATS_FAST_BUCKETS);
-        DataTransferStats.getDataTransferStatsForUI().m_fastBucketsLastStartTime = data.getLong(TunnelManager.DATA_TRANSFER_STATS_FAST_BUCKETS_LAST_START_TIME);
+        DataTransferStats.getDataTransferStatsForUI().readFromBundle(data);
     }
 
     private static class IncomingMessageHandler extends Handler {
@@ -318,6 +395,10 @@ public class TunnelServiceInteractor {
             this.weakServiceInteractor = new WeakReference<>(serviceInteractor);
         }
 
+        boolean isConnected() {
+            return state != null && state.isConnected();
+        }
+
         @Override
         public void handleMessage(Message msg) {
             TunnelServiceInteractor tunnelServiceInteractor = weakServiceInteractor.get();
@@ -351,6 +432,13 @@ public class TunnelServiceInteractor {
                     break;
                 case DATA_TRANSFER_STATS:
                     getDataTransferStatsFromBundle(data);
+                    if (data != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                        SharedMemory sharedMemory = data.getParcelable(
+                                TunnelManager.DATA_TRANSFER_STATS_SHARED_MEMORY, SharedMemory.class);
+                        if (sharedMemory != null) {
+                            tunnelServiceInteractor.attachDataTransferStatsSharedMemory(sharedMemory);
+                        }
+                    }
                     tunnelServiceInteractor.dataStatsRelay.accept(state.isConnected());
                     break;
                 case NFC_CONNECTION_INFO_EXCHANGE_EXPORT:
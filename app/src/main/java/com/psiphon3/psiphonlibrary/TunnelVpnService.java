@@ -26,8 +26,16 @@ import android.net.VpnService;
 import android.os.Build;
 import android.os.IBinder;
 
+import com.psiphon3.log.MyLog;
+
 @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
 public class TunnelVpnService extends VpnService {
+    // The tunnel core logs bursts of diagnostics, which this process writes to its own log
+    // shard rather than sending them over Binder. Larger and less frequent batches save shard
+    // transactions, and still fit in a Binder transaction if the shard falls back to the
+    // provider.
+    private static final MyLog.FlushPolicy LOG_FLUSH_POLICY = new MyLog.FlushPolicy(250, 1000, 5000);
+
     private TunnelManager m_Manager = new TunnelManager(this);
 
     @Override
@@ -65,6 +73,8 @@ public class TunnelVpnService extends VpnService {
 
     @Override
     public void onCreate() {
+        // Log without going through the logging provider process
+        MyLog.openLogShard(this, LOG_FLUSH_POLICY);
         m_Manager.onCreate();
     }
 
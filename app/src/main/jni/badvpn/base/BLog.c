@@ -80,11 +80,11 @@ void BLog_InitStderr (void)
 // ==== PSIPHON ====
 #ifdef PSIPHON
 
-void PsiphonLog(const char *level, const char *channel, const char *msg);
+void PsiphonLog(int level, const char *channel, const char *msg);
 
 static void psiphon_log (int channel, int level, const char *msg)
 {
-    PsiphonLog(level_names[level], blog_global.channels[channel].name, msg);
+    PsiphonLog(level, blog_global.channels[channel].name, msg);
 }
 
 static void psiphon_free (void)
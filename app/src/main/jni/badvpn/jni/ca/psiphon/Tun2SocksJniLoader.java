@@ -23,13 +23,14 @@ public class Tun2SocksJniLoader {
     static {
         System.loadLibrary("tun2socks");
     }
-    public static void initializeLogger(String className, String methodName) {
-        // Replace '.' with '/' in the class name
-        String formattedClassName = className.replace('.', '/');
-        initTun2socksLogger(formattedClassName, methodName);
-    }
 
-    private native static void initTun2socksLogger(String className, String logMethodName);
+    // Logs with a level above the given level are dropped natively, levels as defined in
+    // BLog.h, from 1 for ERROR to 5 for DEBUG
+    public native static void setTun2SocksLogLevel(int level);
+
+    // Copies the logs buffered natively to the buffer and returns the number of bytes written,
+    // see drainTun2SocksLogsNative in tun2socks.c for the format
+    public native static int drainTun2SocksLogs(byte[] buffer);
 
     // Starts tun2socks
     public native static void runTun2Socks(
@@ -263,8 +263,30 @@ static void udpgw_client_handler_received (void *unused, BAddr local_addr, BAddr
 int g_terminate = 0;
 
 static JavaVM *g_vm = NULL;
-static jclass g_logClass = NULL;
-static jmethodID g_logMethod = NULL;
+
+// tun2socks logs are not sent to Java one by one, which would allocate Java strings and call
+// into the VM on the tun2socks thread for every message. They are filtered by level, copied in
+// a bounded lock-free ring and pulled by Java in batches with drainTun2SocksLogs(). Logs are
+// dropped and counted when the ring is full.
+#define PSIPHON_LOG_RING_SLOTS 256 // power of 2
+#define PSIPHON_LOG_CHANNEL_MAX 32
+#define PSIPHON_LOG_MSG_MAX 512
+
+struct psiphon_log_slot {
+    // Position of the log in the slot plus 1 once written, the position of the next log
+    // expected in the slot once read
+    size_t seq;
+    int level;
+    char channel[PSIPHON_LOG_CHANNEL_MAX];
+    char msg[PSIPHON_LOG_MSG_MAX];
+};
+
+static struct psiphon_log_slot g_logRing[PSIPHON_LOG_RING_SLOTS];
+static size_t g_logRingTail = 0;
+// Only accessed by the drain, which is serialized by Java
+static size_t g_logRingHead = 0;
+static int g_logRingDropped = 0;
+static int g_logMaxLevel = BLOG_WARNING;
 
 static void runTun2SocksNative(
         JNIEnv *env,
@@ -282,14 +304,21 @@ static void terminateTun2SocksNative(
         JNIEnv *env,
         jclass cls);
 
-static void initTun2socksLoggerNative(
+static void setTun2SocksLogLevelNative(
+        JNIEnv *env,
+        jclass cls,
+        jint level);
+
+static jint drainTun2SocksLogsNative(
         JNIEnv *env,
         jclass cls,
-        jstring className,
-        jstring methodName);
+        jbyteArray buffer);
 
 JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
     g_vm = vm;
+    for (size_t i = 0; i < PSIPHON_LOG_RING_SLOTS; i++) {
+        g_logRing[i].seq = i;
+    }
     JNIEnv *env;
     if ((*vm)->GetEnv(vm, (void **) &env, JNI_VERSION_1_6) != JNI_OK) {
         return JNI_ERR;
@@ -303,7 +332,8 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
     static JNINativeMethod method_table[] = {
         {"runTun2Socks","(IILjava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;I)V", (void *) runTun2SocksNative},
         {"terminateTun2Socks", "()V", (void *) terminateTun2SocksNative},
-        {"initTun2socksLogger", "(Ljava/lang/String;Ljava/lang/String;)V", (void *) initTun2socksLoggerNative}
+        {"setTun2SocksLogLevel", "(I)V", (void *) setTun2SocksLogLevelNative},
+        {"drainTun2SocksLogs", "([B)I", (void *) drainTun2SocksLogsNative}
     };
 
     jint method_count = sizeof(method_table) / sizeof(method_table[0]);
@@ -316,85 +346,110 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
 }
 
 JNIEXPORT void JNICALL JNI_OnUnload(JavaVM *vm, void *reserved) {
-    JNIEnv *env;
-    if ((*g_vm)->GetEnv(g_vm, (void **) &env, JNI_VERSION_1_6) != JNI_OK) {
-        if ((*g_vm)->AttachCurrentThread(g_vm, &env, NULL) != 0) {
-            return; // Failed to attach thread
-        }
-    }
-
-    // Clean up global reference to the logger class
-    if (g_logClass != NULL) {
-        (*env)->DeleteGlobalRef(env, g_logClass);
-        g_logClass = NULL;
-    }
-    g_logMethod = NULL;
-
-    if ((*g_vm)->GetEnv(g_vm, (void **) &env, JNI_VERSION_1_6) == JNI_EDETACHED) {
-        (*g_vm)->DetachCurrentThread(g_vm);
-    }
-
     g_vm = NULL;
 }
 
-JNIEXPORT void JNICALL initTun2socksLoggerNative(JNIEnv *env, jclass cls, jstring className, jstring methodName) {
-    const char *classNameStr = (*env)->GetStringUTFChars(env, className, 0);
-    const char *methodNameStr = (*env)->GetStringUTFChars(env, methodName, 0);
-
-    // Use env pointer directly
-    jclass localClass = (*env)->FindClass(env, classNameStr);
-    if (localClass == NULL) {
-        (*env)->ReleaseStringUTFChars(env, className, classNameStr);
-        (*env)->ReleaseStringUTFChars(env, methodName, methodNameStr);
-        return; // Class not found
-    }
-
-    g_logClass = (*env)->NewGlobalRef(env, localClass);
-    (*env)->DeleteLocalRef(env, localClass);
-    if (g_logClass == NULL) {
-        (*env)->ReleaseStringUTFChars(env, className, classNameStr);
-        (*env)->ReleaseStringUTFChars(env, methodName, methodNameStr);
-        return; // Failed to create global reference to class
-    }
+void setTun2SocksLogLevelNative(JNIEnv *env, jclass cls, jint level) {
+    __atomic_store_n(&g_logMaxLevel, level, __ATOMIC_RELAXED);
+}
 
-    g_logMethod = (*env)->GetStaticMethodID(env, g_logClass, methodNameStr, "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)V");
-    if (g_logMethod == NULL) {
-        // Failed to find method
-        (*env)->DeleteGlobalRef(env, g_logClass);
-        g_logClass = NULL;
+// Copies src to dst, truncated to fit in size bytes. Truncation backs off to the start of the
+// UTF-8 character it would split, so that the log never ends with a partial sequence.
+static void copy_truncated(char *dst, const char *src, size_t size) {
+    size_t len = strnlen(src, size);
+    if (len == size) {
+        len = size - 1;
+        // src[len] is the first byte dropped, a continuation byte means its character started
+        // in the bytes kept
+        while (len > 0 && ((unsigned char) src[len] & 0xC0) == 0x80) {
+            len--;
+        }
     }
-
-    (*env)->ReleaseStringUTFChars(env, className, classNameStr);
-    (*env)->ReleaseStringUTFChars(env, methodName, methodNameStr);
+    memcpy(dst, src, len);
+    dst[len] = '\0';
 }
 
-void PsiphonLog(const char *levelStr, const char *channelStr, const char *msgStr) {
-    if (g_logClass == NULL || g_logMethod == NULL) {
-        return; // Cache is not initialized
+// Called on the tun2socks thread, never blocks
+void PsiphonLog(int level, const char *channelStr, const char *msgStr) {
+    if (level > __atomic_load_n(&g_logMaxLevel, __ATOMIC_RELAXED)) {
+        return;
     }
 
-    JNIEnv *env;
-    if ((*g_vm)->GetEnv(g_vm, (void **) &env, JNI_VERSION_1_6) != JNI_OK) {
-        if ((*g_vm)->AttachCurrentThread(g_vm, &env, NULL) != 0) {
+    size_t pos = __atomic_load_n(&g_logRingTail, __ATOMIC_RELAXED);
+    struct psiphon_log_slot *slot;
+    while (1) {
+        slot = &g_logRing[pos & (PSIPHON_LOG_RING_SLOTS - 1)];
+        size_t seq = __atomic_load_n(&slot->seq, __ATOMIC_ACQUIRE);
+        intptr_t dif = (intptr_t) seq - (intptr_t) pos;
+        if (dif == 0) {
+            if (__atomic_compare_exchange_n(&g_logRingTail, &pos, pos + 1, 1,
+                    __ATOMIC_RELAXED, __ATOMIC_RELAXED)) {
+                break;
+            }
+        } else if (dif < 0) {
+            // Full, the slot still holds a log that has not been drained
+            __atomic_add_fetch(&g_logRingDropped, 1, __ATOMIC_RELAXED);
             return;
+        } else {
+            pos = __atomic_load_n(&g_logRingTail, __ATOMIC_RELAXED);
         }
     }
 
-    jstring level = (*env)->NewStringUTF(env, levelStr);
-    jstring channel = (*env)->NewStringUTF(env, channelStr);
-    jstring msg = (*env)->NewStringUTF(env, msgStr);
-
-    (*env)->CallStaticVoidMethod(env, g_logClass, g_logMethod, level, channel, msg);
-
-    // Clean up local references
-    (*env)->DeleteLocalRef(env, level);
-    (*env)->DeleteLocalRef(env, channel);
-    (*env)->DeleteLocalRef(env, msg);
+    slot->level = level;
+    copy_truncated(slot->channel, channelStr, sizeof(slot->channel));
+    copy_truncated(slot->msg, msgStr, sizeof(slot->msg));
+    __atomic_store_n(&slot->seq, pos + 1, __ATOMIC_RELEASE);
+}
 
-    // Detach the thread if it was attached
-    if ((*g_vm)->GetEnv(g_vm, (void **) &env, JNI_VERSION_1_6) == JNI_EDETACHED) {
-        (*g_vm)->DetachCurrentThread(g_vm);
+// Copies as many logs as fit in buffer and returns the number of bytes written. The buffer
+// starts with the number of logs dropped since the last drain, followed by the logs, all
+// integers big-endian:
+// int32 dropped, then for each log: uint8 level, uint8 channel length, channel,
+// uint16 message length, message
+jint drainTun2SocksLogsNative(JNIEnv *env, jclass cls, jbyteArray buffer) {
+    jsize capacity = (*env)->GetArrayLength(env, buffer);
+    if (capacity < 4) {
+        return 0;
     }
+    jbyte *bytes = (*env)->GetPrimitiveArrayCritical(env, buffer, NULL);
+    if (bytes == NULL) {
+        return 0;
+    }
+    uint8_t *out = (uint8_t *) bytes;
+    jsize offset = 4;
+
+    while (1) {
+        struct psiphon_log_slot *slot = &g_logRing[g_logRingHead & (PSIPHON_LOG_RING_SLOTS - 1)];
+        size_t seq = __atomic_load_n(&slot->seq, __ATOMIC_ACQUIRE);
+        if (seq != g_logRingHead + 1) {
+            // Empty, or the log is still being written
+            break;
+        }
+        size_t channelLen = strlen(slot->channel);
+        size_t msgLen = strlen(slot->msg);
+        if (offset + 1 + 1 + (jsize) channelLen + 2 + (jsize) msgLen > capacity) {
+            break;
+        }
+        out[offset++] = (uint8_t) slot->level;
+        out[offset++] = (uint8_t) channelLen;
+        memcpy(out + offset, slot->channel, channelLen);
+        offset += channelLen;
+        out[offset++] = (uint8_t) (msgLen >> 8);
+        out[offset++] = (uint8_t) msgLen;
+        memcpy(out + offset, slot->msg, msgLen);
+        offset += msgLen;
+        __atomic_store_n(&slot->seq, g_logRingHead + PSIPHON_LOG_RING_SLOTS, __ATOMIC_RELEASE);
+        g_logRingHead++;
+    }
+
+    int dropped = __atomic_exchange_n(&g_logRingDropped, 0, __ATOMIC_RELAXED);
+    out[0] = (uint8_t) (dropped >> 24);
+    out[1] = (uint8_t) (dropped >> 16);
+    out[2] = (uint8_t) (dropped >> 8);
+    out[3] = (uint8_t) dropped;
+
+    (*env)->ReleasePrimitiveArrayCritical(env, buffer, bytes, 0);
+    return offset;
 }
 
 void runTun2SocksNative(
@@ -426,7 +481,8 @@ void runTun2SocksNative(
     options.udpgw_remote_server_addr = (char *) udpgwServerAddressStr;
     options.udpgw_transparent_dns = udpgw_transparent_dns;
     options.set_signal = 0;
-    options.loglevel = 2;
+    // Logs above the level are dropped by BLog before being formatted
+    options.loglevel = __atomic_load_n(&g_logMaxLevel, __ATOMIC_RELAXED);
 
     BLog_InitPsiphon();
 
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.log;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+public class LogPayloadTest {
+    // Logs as stored in the logjson column by the versions before LogPayload
+    private static final String LEGACY_STATUS_NO_ARGS =
+            "{\"stringResourceName\":\"com.psiphon3:string\\/tunnel_connecting\",\"sensitivity\":0,\"formatArgs\":null}";
+    private static final String LEGACY_STATUS_WITH_ARGS =
+            "{\"stringResourceName\":\"com.psiphon3:string\\/socks_running\",\"sensitivity\":1,\"formatArgs\":[1080]}";
+    private static final String LEGACY_STATUS_STRING_ARGS =
+            "{\"stringResourceName\":\"com.psiphon3:string\\/client_version\",\"sensitivity\":2,\"formatArgs\":[\"392\",\"Psiphon\"]}";
+    private static final String LEGACY_DIAGNOSTIC_NO_DATA =
+            "{\"msg\":\"TunnelManager::onStartCommand\",\"data\":{}}";
+    private static final String LEGACY_DIAGNOSTIC_WITH_DATA =
+            "{\"msg\":\"ServerTimestamp\",\"data\":{\"count\":3,\"isRooted\":false,\"ratio\":0.5," +
+                    "\"timestamp\":\"2021-09-01T12:00:00Z\",\"bytes\":8589934592," +
+                    "\"regions\":[\"CA\",\"US\"],\"params\":{\"a\":[1,2],\"b\":null},\"missing\":null}}";
+
+    @Test
+    public void statusRoundTrip() {
+        Object[] formatArgs = {"text", 42, 1L << 40, 1.5, true, null,
+                (short) 7, (byte) 8, 2.5f, new StringBuilder("other")};
+        LogPayload.Status status = LogPayload.decodeStatus(
+                LogPayload.encodeStatus("com.psiphon3:string/socks_running", 2, formatArgs));
+
+        assertEquals("com.psiphon3:string/socks_running", status.getStringResourceName());
+        assertEquals(2, status.getSensitivity());
+        // Shorts and bytes decode as ints, floats as doubles, unknown types as their string
+        assertArrayEquals(new Object[]{"text", 42, 1L << 40, 1.5, true, JSONObject.NULL,
+                7, 8, 2.5, "other"}, status.getFormatArgs());
+    }
+
+    @Test
+    public void statusRoundTripJsonValues() throws JSONException {
+        JSONObject object = new JSONObject("{\"a\":1,\"b\":[true,\"c\"]}");
+        JSONArray array = new JSONArray("[1,{\"d\":null}]");
+        LogPayload.Status status = LogPayload.decodeStatus(
+                LogPayload.encodeStatus("name", 0, new Object[]{object, array}));
+
+        Object[] formatArgs = status.getFormatArgs();
+        assertEquals(2, formatArgs.length);
+        assertTrue(formatArgs[0] instanceof JSONObject);
+        assertEquals(object.toString(), formatArgs[0].toString());
+        assertTrue(formatArgs[1] instanceof JSONArray);
+        assertEquals(array.toString(), formatArgs[1].toString());
+    }
+
+    @Test
+    public void statusWithoutFormatArgs() {
+        LogPayload.Status status = LogPayload.decodeStatus(LogPayload.encodeStatus("name", 0, null));
+        assertEquals(0, status.getFormatArgs().length);
+        assertEquals("[]", status.getFormatArgsJsonArray().toString());
+    }
+
+    @Test
+    public void diagnosticRoundTrip() throws JSONException {
+        JSONObject object = new JSONObject("{\"a\":1,\"b\":[true,\"c\"]}");
+        JSONArray array = new JSONArray("[1,{\"d\":\"e\"}]");
+        LogPayload.Diagnostic diagnostic = LogPayload.decodeDiagnostic(LogPayload.encodeDiagnostic("msg",
+                new Object[]{"string", "text", "int", 42, "long", 1L << 40, "double", 1.5,
+                        "boolean", false, "null", null, "object", object, "array", array}));
+
+        assertEquals("msg", diagnostic.getMsg());
+        JSONObject data = diagnostic.getData();
+        assertEquals("text", data.get("string"));
+        assertEquals(42, data.get("int"));
+        assertEquals(1L << 40, data.get("long"));
+        assertEquals(1.5, data.get("double"));
+        assertEquals(false, data.get("boolean"));
+        assertEquals(JSONObject.NULL, data.get("null"));
+        assertEquals(object.toString(), data.getJSONObject("object").toString());
+        assertEquals(array.toString(), data.getJSONArray("array").toString());
+    }
+
+    // JSON object and array values are written as the JSON text they were stored as
+    @Test
+    public void diagnosticWriteFieldsRawJson() throws IOException, JSONException {
+        JSONObject object = new JSONObject("{\"a\":1,\"b\":[true,\"c\"]}");
+        JSONArray array = new JSONArray("[1,{\"d\":\"e\"}]");
+        LogPayload.Diagnostic diagnostic = LogPayload.decodeDiagnostic(LogPayload.encodeDiagnostic("msg",
+                new Object[]{"object", object, "array", array, "int", 1, "null", null}));
+
+        JSONObject written = new JSONObject(writeFields(diagnostic));
+        assertEquals("msg", written.getString("msg"));
+        JSONObject data = written.getJSONObject("data");
+        assertEquals(object.toString(), data.getJSONObject("object").toString());
+        assertEquals(array.toString(), data.getJSONArray("array").toString());
+        assertEquals(1, data.getInt("int"));
+        assertTrue(data.isNull("null"));
+    }
+
+    // NaN and infinities are not valid JSON numbers, they are written as strings
+    @Test
+    public void diagnosticNonFiniteDoubles() throws IOException, JSONException {
+        LogPayload.Diagnostic diagnostic = LogPayload.decodeDiagnostic(LogPayload.encodeDiagnostic("msg",
+                new Object[]{"nan", Double.NaN, "inf", Double.POSITIVE_INFINITY,
+                        "negInf", Float.NEGATIVE_INFINITY, "finite", 1.5}));
+
+        JSONObject written = new JSONObject(writeFields(diagnostic)).getJSONObject("data");
+        assertEquals("NaN", written.get("nan"));
+        assertEquals("Infinity", written.get("inf"));
+        assertEquals("-Infinity", written.get("negInf"));
+        assertEquals(1.5, written.getDouble("finite"), 0);
+
+        JSONObject data = diagnostic.getData();
+        assertEquals(4, data.length());
+        assertEquals("NaN", data.get("nan"));
+        assertEquals("-Infinity", data.get("negInf"));
+    }
+
+    @Test
+    public void noticeRoundTrip() {
+        String notice = "{\"noticeType\":\"Info\",\"data\":{\"message\":\"caf\u00e9\"}}";
+        LogPayload.Diagnostic diagnostic = LogPayload.decodeDiagnostic(LogPayload.encodeNotice(notice));
+        assertEquals(notice, diagnostic.getMsg());
+        assertEquals(0, diagnostic.getData().length());
+        // Notices are not status logs
+        assertNull(LogPayload.decodeStatus(LogPayload.encodeNotice(notice)));
+    }
+
+    @Test
+    public void invalidPayloads() {
+        byte[] status = LogPayload.encodeStatus("name", 0, new Object[]{"arg"});
+        byte[] diagnostic = LogPayload.encodeDiagnostic("msg", new Object[]{"name", "value"});
+        assertNull(LogPayload.decodeStatus(null));
+        assertNull(LogPayload.decodeDiagnostic(new byte[1]));
+        // Wrong type
+        assertNull(LogPayload.decodeStatus(diagnostic));
+        assertNull(LogPayload.decodeDiagnostic(status));
+        // Unknown format version
+        byte[] version = status.clone();
+        version[0] = 0;
+        assertNull(LogPayload.decodeStatus(version));
+        // Truncated
+        assertNull(LogPayload.decodeStatus(Arrays.copyOf(status, status.length - 1)));
+        assertNull(LogPayload.decodeDiagnostic(Arrays.copyOf(diagnostic, diagnostic.length - 1)));
+    }
+
+    @Test
+    public void legacyStatusLogs() throws JSONException {
+        LogPayload.Status status = LogPayload.decodeStatus(
+                LogPayload.fromLegacyLogJson(LEGACY_STATUS_NO_ARGS, false));
+        assertEquals("com.psiphon3:string/tunnel_connecting", status.getStringResourceName());
+        assertEquals(0, status.getSensitivity());
+        assertEquals(0, status.getFormatArgs().length);
+
+        status = LogPayload.decodeStatus(LogPayload.fromLegacyLogJson(LEGACY_STATUS_WITH_ARGS, false));
+        assertEquals("com.psiphon3:string/socks_running", status.getStringResourceName());
+        assertEquals(1, status.getSensitivity());
+        assertArrayEquals(new Object[]{1080}, status.getFormatArgs());
+
+        status = LogPayload.decodeStatus(LogPayload.fromLegacyLogJson(LEGACY_STATUS_STRING_ARGS, false));
+        assertEquals(2, status.getSensitivity());
+        assertArrayEquals(new Object[]{"392", "Psiphon"}, status.getFormatArgs());
+    }
+
+    @Test
+    public void legacyDiagnosticLogs() throws JSONException, IOException {
+        LogPayload.Diagnostic diagnostic = LogPayload.decodeDiagnostic(
+                LogPayload.fromLegacyLogJson(LEGACY_DIAGNOSTIC_NO_DATA, true));
+        assertEquals("TunnelManager::onStartCommand", diagnostic.getMsg());
+        assertEquals(0, diagnostic.getData().length());
+
+        diagnostic = LogPayload.decodeDiagnostic(LogPayload.fromLegacyLogJson(LEGACY_DIAGNOSTIC_WITH_DATA, true));
+        assertEquals("ServerTimestamp", diagnostic.getMsg());
+        // The data converts back to the same JSON, whichever way it is read
+        JSONObject legacyData = new JSONObject(LEGACY_DIAGNOSTIC_WITH_DATA).getJSONObject("data");
+        assertJsonEquals(legacyData, diagnostic.getData());
+        assertJsonEquals(legacyData, new JSONObject(writeFields(diagnostic)).getJSONObject("data"));
+    }
+
+    @Test
+    public void invalidLegacyLogs() throws JSONException {
+        // Diagnostic logs are kept as their text
+        LogPayload.Diagnostic diagnostic = LogPayload.decodeDiagnostic(
+                LogPayload.fromLegacyLogJson("not json", true));
+        assertEquals("not json", diagnostic.getMsg());
+
+        assertThrowsJsonException("not json", false);
+        assertThrowsJsonException(null, false);
+        assertThrowsJsonException(null, true);
+        // Status logs without their string resource name
+        assertThrowsJsonException("{\"sensitivity\":0,\"formatArgs\":null}", false);
+    }
+
+    private static void assertThrowsJsonException(String logJson, boolean isDiagnostic) {
+        try {
+            LogPayload.fromLegacyLogJson(logJson, isDiagnostic);
+        } catch (JSONException e) {
+            return;
+        }
+        throw new AssertionError("Expected JSONException for " + logJson);
+    }
+
+    private static void assertJsonEquals(JSONObject expected, JSONObject actual) throws JSONException {
+        assertEquals(expected.length(), actual.length());
+        JSONArray names = expected.names();
+        for (int i = 0; i < names.length(); i++) {
+            String name = names.getString(i);
+            Object expectedValue = expected.get(name);
+            Object actualValue = actual.get(name);
+            if (expectedValue instanceof JSONObject || expectedValue instanceof JSONArray) {
+                assertEquals(name, expectedValue.toString(), actualValue.toString());
+            } else if (expectedValue instanceof Number) {
+                assertEquals(name, ((Number) expectedValue).doubleValue(), ((Number) actualValue).doubleValue(), 0);
+            } else {
+                assertEquals(name, expectedValue, actualValue);
+            }
+        }
+    }
+
+    private static String writeFields(LogPayload.Diagnostic diagnostic) throws IOException {
+        StringWriter writer = new StringWriter();
+        JsonGenerator generator = new JsonFactory().createGenerator(writer);
+        generator.writeStartObject();
+        diagnostic.writeFields(generator);
+        generator.writeEndObject();
+        generator.close();
+        return writer.toString();
+    }
+}